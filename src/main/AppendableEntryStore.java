@@ -0,0 +1,14 @@
+package main;
+
+/**
+ * Entry store filled row by row while a log file is read, the stores of EAGER, LAZY, COLUMNAR and OFF_HEAP modes
+ * Once its segment is sealed nothing is added any more, it is only read through EntryStore
+ */
+interface AppendableEntryStore extends EntryStore {
+    void add(LogEntry entry);
+
+    /**
+     * Gives back capacity reserved for rows which will never come, called when the segment is sealed
+     */
+    void trimToSize();
+}
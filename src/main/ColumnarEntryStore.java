@@ -0,0 +1,214 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * Keeps entries on the Java heap as primitive column arrays, one array per field
+ * Strings are replaced by ids from dictionaries, rows with no task number hold EntryRecord.NO_TASK
+ * Scans evaluate filters over whole blocks of a column with FilterKernels instead of reading row by row
+ */
+class ColumnarEntryStore implements AppendableEntryStore {
+    private static final int INITIAL_CAPACITY = 1 << 8;
+    private static final Event[] EVENTS = Event.values();
+    private static final Status[] STATUSES = Status.values();
+
+    private final StringDictionary ips;
+    private final StringDictionary users;
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int[] ipIds = new int[INITIAL_CAPACITY];
+    private int[] userIds = new int[INITIAL_CAPACITY];
+    private int[] tasks = new int[INITIAL_CAPACITY];
+    private byte[] events = new byte[INITIAL_CAPACITY];
+    private byte[] statuses = new byte[INITIAL_CAPACITY];
+    private int size;
+
+    public ColumnarEntryStore(StringDictionary ips, StringDictionary users) {
+        this.ips = ips;
+        this.users = users;
+    }
+
+    @Override
+    public void add(LogEntry entry) {
+        if (size == times.length) grow();
+        Event event = entry.getEvent();
+        times[size] = entry.getTime();
+        ipIds[size] = ips.getId(entry.getIp());
+        userIds[size] = users.getId(entry.getUser());
+        tasks[size] = LogField.hasTask(event) ? entry.getTaskNumber() : EntryRecord.NO_TASK;
+        events[size] = (byte) event.ordinal();
+        statuses[size] = (byte) entry.getStatus().ordinal();
+        size++;
+    }
+
+    private void grow() {
+        int capacity = times.length * 2;
+        times = Arrays.copyOf(times, capacity);
+        ipIds = Arrays.copyOf(ipIds, capacity);
+        userIds = Arrays.copyOf(userIds, capacity);
+        tasks = Arrays.copyOf(tasks, capacity);
+        events = Arrays.copyOf(events, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+    }
+
+    @Override
+    public void trimToSize() {
+        if (size == times.length) return;
+        times = Arrays.copyOf(times, size);
+        ipIds = Arrays.copyOf(ipIds, size);
+        userIds = Arrays.copyOf(userIds, size);
+        tasks = Arrays.copyOf(tasks, size);
+        events = Arrays.copyOf(events, size);
+        statuses = Arrays.copyOf(statuses, size);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public LogEntry get(int row) {
+        int task = tasks[row];
+        return new LogEntry(ips.getValue(ipIds[row]), users.getValue(userIds[row]), times[row],
+                EVENTS[events[row]], task == EntryRecord.NO_TASK ? null : task, STATUSES[statuses[row]]);
+    }
+
+    @Override
+    public long getTime(int row) {
+        return times[row];
+    }
+
+    @Override
+    public String getIp(int row) {
+        return ips.getValue(ipIds[row]);
+    }
+
+    @Override
+    public String getUser(int row) {
+        return users.getValue(userIds[row]);
+    }
+
+    @Override
+    public Event getEvent(int row) {
+        return EVENTS[events[row]];
+    }
+
+    @Override
+    public Status getStatus(int row) {
+        return STATUSES[statuses[row]];
+    }
+
+    @Override
+    public int getTaskNumber(int row) {
+        return tasks[row];
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        //Columns are sized by capacity, which matches size once the segment is sealed
+        return MemoryUsage.arrayBytes(times.length, Long.BYTES) + 3 * MemoryUsage.arrayBytes(ipIds.length, Integer.BYTES)
+                + 2 * MemoryUsage.arrayBytes(events.length, Byte.BYTES);
+    }
+
+    /**
+     * Bitmaps select needs for the filter, one per level of And and Or nodes and one for the whole filter
+     * A scan allocates them once and passes them for every block of at most ZoneMap.BLOCK_ROWS rows
+     */
+    static long[][] scratchFor(Filter filter) {
+        return new long[filter == null ? 0 : 1 + depth(filter)][FilterKernels.words(ZoneMap.BLOCK_ROWS)];
+    }
+
+    private static int depth(Filter filter) {
+        if (!(filter instanceof Filter.And) && !(filter instanceof Filter.Or)) return 0;
+        int depth = 0;
+        for (Filter child : filter instanceof Filter.And ? ((Filter.And) filter).getFilters() : ((Filter.Or) filter).getFilters()) {
+            depth = Math.max(depth, depth(child));
+        }
+        return depth + 1;
+    }
+
+    /**
+     * Marks rows from..to (exclusive) which are between after and before and match the filter
+     * Bit i of the selection stands for row from + i, the selection is cleared first
+     * Scratch bitmaps come from scratchFor(filter)
+     */
+    public void select(int from, int to, Filter filter, long after, long before, long[] selection, long[][] scratch) {
+        int words = FilterKernels.words(to - from);
+        Arrays.fill(selection, 0, words, 0);
+        FilterKernels.range(times, from, to, after, before, selection);
+        if (filter == null) return;
+        long[] matches = scratch[0];
+        Arrays.fill(matches, 0, words, 0);
+        evaluate(filter, from, to, matches, scratch, 1);
+        FilterKernels.and(selection, matches, words);
+    }
+
+    /**
+     * Sets bits of rows matching the filter in cleared bits, And and Or nodes at given level combine children in scratch[level]
+     */
+    private void evaluate(Filter filter, int from, int to, long[] bits, long[][] scratch, int level) {
+        int words = FilterKernels.words(to - from);
+        if (filter instanceof Filter.Eq) {
+            Filter.Eq eq = (Filter.Eq) filter;
+            Object value = eq.getValue();
+            //Null value or a string no row has matches nothing, bits stay clear
+            if (value == null) return;
+            switch (eq.getField()) {
+                case IP:
+                    int ip = ips.findId((String) value);
+                    if (ip >= 0) FilterKernels.equal(ipIds, from, to, ip, bits);
+                    return;
+                case USER:
+                    int user = users.findId((String) value);
+                    if (user >= 0) FilterKernels.equal(userIds, from, to, user, bits);
+                    return;
+                case DATE:
+                    long time = ((Date) value).getTime();
+                    FilterKernels.range(times, from, to, time, time, bits);
+                    return;
+                case EVENT:
+                    FilterKernels.equal(events, from, to, (byte) ((Event) value).ordinal(), bits);
+                    return;
+                case STATUS:
+                    FilterKernels.equal(statuses, from, to, (byte) ((Status) value).ordinal(), bits);
+                    return;
+                default:
+                    FilterKernels.equal(tasks, from, to, (Integer) value, bits);
+                    return;
+            }
+        }
+        if (filter instanceof Filter.Between) {
+            Filter.Between range = (Filter.Between) filter;
+            FilterKernels.range(times, from, to,
+                    range.getAfter() == null ? Long.MIN_VALUE : range.getAfter().getTime(),
+                    range.getBefore() == null ? Long.MAX_VALUE : range.getBefore().getTime(), bits);
+            return;
+        }
+        boolean and = filter instanceof Filter.And;
+        long[] part = scratch[level];
+        boolean first = true;
+        for (Filter child : and ? ((Filter.And) filter).getFilters() : ((Filter.Or) filter).getFilters()) {
+            if (first) {
+                evaluate(child, from, to, bits, scratch, level + 1);
+                first = false;
+                continue;
+            }
+            Arrays.fill(part, 0, words, 0);
+            evaluate(child, from, to, part, scratch, level + 1);
+            if (and) FilterKernels.and(bits, part, words);
+            else FilterKernels.or(bits, part, words);
+        }
+    }
+
+    @Override
+    public void close() {
+        times = new long[0];
+        ipIds = new int[0];
+        userIds = new int[0];
+        tasks = new int[0];
+        events = new byte[0];
+        statuses = new byte[0];
+        size = 0;
+    }
+}
@@ -0,0 +1,269 @@
+package main;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read only range of EntryRecords in a time ordered data file written by ExternalSorter
+ * Rows are read through the shared PageCache, so only dictionaries and cached pages stay in memory
+ * Scans read through reader(), which keeps the current page instead of looking it up for every field
+ */
+class DiskEntryStore implements EntryStore {
+    private final DataFile file;
+    private final long firstRow;
+    private final int size;
+    private final StringDictionary ips;
+    private final StringDictionary users;
+    private boolean closed;
+
+    public DiskEntryStore(DataFile file, long firstRow, int size, StringDictionary ips, StringDictionary users) {
+        this.file = file;
+        this.firstRow = firstRow;
+        this.size = size;
+        this.ips = ips;
+        this.users = users;
+        file.retain();
+    }
+
+    /**
+     * Rows of one scan mostly follow each other, the returned store looks up a page only when the row leaves it
+     * It belongs to a single thread and holds at most one page, even after the cache dropped it
+     */
+    @Override
+    public EntryStore reader() {
+        return new PageReader();
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public LogEntry get(int row) {
+        return EntryRecord.read(page(row), offset(row), ips, users);
+    }
+
+    @Override
+    public long getTime(int row) {
+        return EntryRecord.getTime(page(row), offset(row));
+    }
+
+    @Override
+    public String getIp(int row) {
+        return EntryRecord.getIp(page(row), offset(row), ips);
+    }
+
+    @Override
+    public String getUser(int row) {
+        return EntryRecord.getUser(page(row), offset(row), users);
+    }
+
+    @Override
+    public int getTaskNumber(int row) {
+        return EntryRecord.getTaskNumber(page(row), offset(row));
+    }
+
+    @Override
+    public Event getEvent(int row) {
+        return EntryRecord.getEvent(page(row), offset(row));
+    }
+
+    @Override
+    public Status getStatus(int row) {
+        return EntryRecord.getStatus(page(row), offset(row));
+    }
+
+    /**
+     * Rows stay in the data file, cached pages are counted by the page cache
+     */
+    @Override
+    public long getEstimatedBytes() {
+        return 0;
+    }
+
+    /**
+     * File is deleted once every store reading it is closed
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        file.release();
+    }
+
+    private ByteBuffer page(int row) {
+        return loadPage(pageNumber(row));
+    }
+
+    private ByteBuffer loadPage(int number) {
+        if (closed) throw new IllegalStateException("Disk entry store is closed");
+        return file.cache.get(file, number);
+    }
+
+    private int pageNumber(int row) {
+        return (int) ((firstRow + row) / PageCache.PAGE_RECORDS);
+    }
+
+    private int offset(int row) {
+        return (int) ((firstRow + row) % PageCache.PAGE_RECORDS) * EntryRecord.SIZE;
+    }
+
+    private final class PageReader implements EntryStore {
+        private int pageNumber = -1;
+        private ByteBuffer page;
+
+        private ByteBuffer page(int row) {
+            int number = pageNumber(row);
+            if (number != pageNumber) {
+                page = loadPage(number);
+                pageNumber = number;
+            }
+            return page;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public LogEntry get(int row) {
+            return EntryRecord.read(page(row), offset(row), ips, users);
+        }
+
+        @Override
+        public long getTime(int row) {
+            return EntryRecord.getTime(page(row), offset(row));
+        }
+
+        @Override
+        public String getIp(int row) {
+            return EntryRecord.getIp(page(row), offset(row), ips);
+        }
+
+        @Override
+        public String getUser(int row) {
+            return EntryRecord.getUser(page(row), offset(row), users);
+        }
+
+        @Override
+        public int getTaskNumber(int row) {
+            return EntryRecord.getTaskNumber(page(row), offset(row));
+        }
+
+        @Override
+        public Event getEvent(int row) {
+            return EntryRecord.getEvent(page(row), offset(row));
+        }
+
+        @Override
+        public Status getStatus(int row) {
+            return EntryRecord.getStatus(page(row), offset(row));
+        }
+
+        @Override
+        public long getEstimatedBytes() {
+            return 0;
+        }
+
+        /**
+         * Reader is dropped with its scan, the store stays open
+         */
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Data file shared by the stores cut from it, counts open stores to know when it can be deleted
+     * Pages cached by PageCache hang off the file by page number, with a flag telling the clock a page was read again
+     */
+    static final class DataFile {
+        private final Path path;
+        //Interrupting a reading thread closes the channel for all queries, it is then reopened by the next reader
+        private volatile FileChannel channel;
+        private final PageCache cache;
+        private final AtomicReferenceArray<ByteBuffer> cachedPages;
+        //Written by readers without locking, a lost update only costs the page its second chance
+        private final boolean[] referenced;
+        private int openStores;
+
+        DataFile(Path path, PageCache cache) throws IOException {
+            this.path = path;
+            this.cache = cache;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            //File is complete when it is opened, its size gives the number of pages
+            int pages = (int) ((channel.size() + PageCache.PAGE_BYTES - 1) / PageCache.PAGE_BYTES);
+            cachedPages = new AtomicReferenceArray<>(pages);
+            referenced = new boolean[pages];
+        }
+
+        ByteBuffer getCachedPage(int page) {
+            ByteBuffer buffer = cachedPages.get(page);
+            if (buffer != null && !referenced[page]) referenced[page] = true;
+            return buffer;
+        }
+
+        void setCachedPage(int page, ByteBuffer buffer) {
+            referenced[page] = false;
+            cachedPages.set(page, buffer);
+        }
+
+        boolean clearReferenced(int page) {
+            if (!referenced[page]) return false;
+            referenced[page] = false;
+            return true;
+        }
+
+        ByteBuffer readPage(int page) throws IOException {
+            //Last page of a file may be shorter, its missing records are never read
+            ByteBuffer buffer = ByteBuffer.allocate(PageCache.PAGE_BYTES);
+            long position = (long) page * PageCache.PAGE_BYTES;
+            while (buffer.hasRemaining()) {
+                FileChannel current = channel;
+                int read;
+                try {
+                    read = current.read(buffer, position + buffer.position());
+                } catch (ClosedByInterruptException e) {
+                    //Only the interrupted query fails, others go on with a new channel
+                    reopen(current);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    //Other reader was interrupted meanwhile
+                    reopen(current);
+                    continue;
+                }
+                if (read < 0) break;
+            }
+            return buffer;
+        }
+
+        private synchronized void reopen(FileChannel closed) throws IOException {
+            //Once the last store is released the file is gone for good
+            if (openStores == 0) throw new ClosedChannelException();
+            if (channel == closed) channel = FileChannel.open(path, StandardOpenOption.READ);
+        }
+
+        synchronized void retain() {
+            openStores++;
+        }
+
+        synchronized void release() {
+            if (--openStores > 0) return;
+            cache.evict(this);
+            try {
+                channel.close();
+                Files.deleteIfExists(path);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
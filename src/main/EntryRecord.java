@@ -0,0 +1,67 @@
+package main;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-width binary form of an entry, used by stores keeping entries outside of LogEntry objects
+ * Strings are replaced by ids from dictionaries
+ * Layout: time (8 bytes), ip id (4), user id (4), task number (4), event ordinal (1), status ordinal (1), padding (2)
+ */
+final class EntryRecord {
+    static final int SIZE = 24;
+    static final int NO_TASK = Integer.MIN_VALUE;
+
+    private static final Event[] EVENTS = Event.values();
+    private static final Status[] STATUSES = Status.values();
+
+    private EntryRecord() {
+    }
+
+    static void write(ByteBuffer buffer, int offset, LogEntry entry, StringDictionary ips, StringDictionary users) {
+        Event event = entry.getEvent();
+        buffer.putLong(offset, entry.getTime());
+        buffer.putInt(offset + 8, ips.getId(entry.getIp()));
+        buffer.putInt(offset + 12, users.getId(entry.getUser()));
+        buffer.putInt(offset + 16, LogField.hasTask(event) ? entry.getTaskNumber() : NO_TASK);
+        buffer.put(offset + 20, (byte) event.ordinal());
+        buffer.put(offset + 21, (byte) entry.getStatus().ordinal());
+    }
+
+    /**
+     * Entry is materialized from the record, strings come from dictionaries so nothing is copied
+     */
+    static LogEntry read(ByteBuffer buffer, int offset, StringDictionary ips, StringDictionary users) {
+        int task = getTaskNumber(buffer, offset);
+        return new LogEntry(
+                ips.getValue(buffer.getInt(offset + 8)),
+                users.getValue(buffer.getInt(offset + 12)),
+                getTime(buffer, offset),
+                getEvent(buffer, offset),
+                task == NO_TASK ? null : task,
+                getStatus(buffer, offset));
+    }
+
+    static long getTime(ByteBuffer buffer, int offset) {
+        return buffer.getLong(offset);
+    }
+
+    static String getIp(ByteBuffer buffer, int offset, StringDictionary ips) {
+        return ips.getValue(buffer.getInt(offset + 8));
+    }
+
+    static String getUser(ByteBuffer buffer, int offset, StringDictionary users) {
+        return users.getValue(buffer.getInt(offset + 12));
+    }
+
+    static int getTaskNumber(ByteBuffer buffer, int offset) {
+        return buffer.getInt(offset + 16);
+    }
+
+    static Event getEvent(ByteBuffer buffer, int offset) {
+        return EVENTS[buffer.get(offset + 20)];
+    }
+
+    static Status getStatus(ByteBuffer buffer, int offset) {
+        return STATUSES[buffer.get(offset + 21)];
+    }
+}
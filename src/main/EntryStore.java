@@ -0,0 +1,52 @@
+package main;
+
+/**
+ * Storage backend of LogParser, rows are addressed by their position in the store
+ * Row accessors read single fields without building a LogEntry
+ * Stores are read only here, the ones built row by row also implement AppendableEntryStore
+ */
+interface EntryStore {
+    int size();
+
+    LogEntry get(int row);
+
+    long getTime(int row);
+
+    String getIp(int row);
+
+    String getUser(int row);
+
+    Event getEvent(int row);
+
+    Status getStatus(int row);
+
+    /**
+     * Only rows with Event.ATTEMPT_TASK or Event.COMPLETE_TASK have a task number
+     */
+    int getTaskNumber(int row);
+
+    /**
+     * Store to read from during one scan on one thread, the same store unless reading it has per scan state
+     */
+    default EntryStore reader() {
+        return this;
+    }
+
+    /**
+     * Same rows for a pass which should leave the store as it is, like synopses built when a segment is sealed
+     * Stores of lazy entries then decode fields without keeping them
+     */
+    default EntryStore uncached() {
+        return this;
+    }
+
+    /**
+     * Estimated bytes held by the rows, on and off the heap, see MemoryUsage
+     */
+    long getEstimatedBytes();
+
+    /**
+     * Releases memory held by the store, it must not be used afterwards
+     */
+    void close();
+}
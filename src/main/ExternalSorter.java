@@ -0,0 +1,240 @@
+package main;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.LongUnaryOperator;
+
+/**
+ * Sorts entries by time with bounded memory
+ * Entries are encoded into a run buffer of at most runRecords entries, every full run is sorted and spilled into a temp file,
+ * the buffer starts small and doubles while it fills so small appends do not allocate a full run
+ * finish merges all runs into one time ordered data file and cuts it into disk segments
+ */
+class ExternalSorter implements Closeable {
+    //Memory one buffered entry takes: its record, sort key and two positions used by the merge sort
+    static final int BYTES_PER_ENTRY = EntryRecord.SIZE + 16;
+    private static final int IO_BUFFER_RECORDS = 1 << 10;
+
+    private final Path tempDir;
+    private final StringDictionary ips;
+    private final StringDictionary users;
+    private final int runRecords;
+    private ByteBuffer run;
+    private long[] times;
+    private int[] order;
+    private int[] buffer;
+    private final List<Path> runFiles = new ArrayList<>();
+    private int count;
+
+    public ExternalSorter(Path tempDir, int runRecords, StringDictionary ips, StringDictionary users) {
+        if (runRecords <= 0) throw new IllegalArgumentException("Sort run needs at least one record: " + runRecords);
+        this.tempDir = tempDir;
+        this.ips = ips;
+        this.users = users;
+        this.runRecords = runRecords;
+        allocate(Math.min(runRecords, IO_BUFFER_RECORDS));
+    }
+
+    public void add(LogEntry entry) {
+        if (count == runRecords) spill();
+        else if (count == times.length) allocate((int) Math.min(runRecords, 2L * times.length));
+        EntryRecord.write(run, count * EntryRecord.SIZE, entry, ips, users);
+        times[count] = entry.getTime();
+        count++;
+    }
+
+    /**
+     * Merges spilled runs into a new data file in tempDir
+     * Segments never cross a partition (given by partitionKey) and hold at most maxSegmentRows rows
+     */
+    public List<Segment> finish(PageCache cache, int maxSegmentRows, LongUnaryOperator partitionKey) {
+        if (count > 0) spill();
+        List<Segment> segments = new ArrayList<>();
+        if (runFiles.isEmpty()) return segments;
+
+        Path dataPath = null;
+        List<RunReader> readers = new ArrayList<>();
+        try {
+            dataPath = Files.createTempFile(tempDir, "data-", ".bin");
+            //Equal times keep the order they were added in, earlier runs win ties
+            PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> a.time() != b.time()
+                    ? Long.compare(a.time(), b.time())
+                    : Integer.compare(a.index, b.index));
+            for (Path runFile : runFiles) {
+                RunReader reader = new RunReader(runFile, readers.size());
+                readers.add(reader);
+                if (reader.next()) queue.add(reader);
+            }
+
+            //Segment boundaries are collected first, stores can only open the file once it is written
+            List<long[]> bounds = new ArrayList<>();
+            try (FileChannel out = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+                ByteBuffer output = ByteBuffer.allocate(IO_BUFFER_RECORDS * EntryRecord.SIZE);
+                long row = 0;
+                long[] current = null;
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    long time = reader.time();
+                    if (current == null || current[1] == maxSegmentRows || partitionKey.applyAsLong(time) != partitionKey.applyAsLong(current[2])) {
+                        //first row, size, min time, max time
+                        current = new long[]{row, 0, time, time};
+                        bounds.add(current);
+                    }
+                    current[1]++;
+                    current[3] = time;
+
+                    reader.copyTo(output);
+                    if (!output.hasRemaining()) write(out, output);
+                    row++;
+                    if (reader.next()) queue.add(reader);
+                }
+                write(out, output);
+            }
+
+            DiskEntryStore.DataFile dataFile = new DiskEntryStore.DataFile(dataPath, cache);
+            dataPath.toFile().deleteOnExit();
+            for (long[] bound : bounds) {
+                segments.add(new Segment(new DiskEntryStore(dataFile, bound[0], (int) bound[1], ips, users), bound[2], bound[3]));
+            }
+            return segments;
+        } catch (IOException e) {
+            for (Segment segment : segments) segment.close();
+            if (dataPath != null) dataPath.toFile().delete();
+            throw new UncheckedIOException(e);
+        } finally {
+            for (RunReader reader : readers) reader.close();
+            close();
+        }
+    }
+
+    /**
+     * Deletes run files which were not merged yet
+     */
+    @Override
+    public void close() {
+        for (Path runFile : runFiles) runFile.toFile().delete();
+        runFiles.clear();
+        count = 0;
+    }
+
+    /**
+     * Grows the run buffer to capacity records, keeping the buffered entries
+     */
+    private void allocate(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity * EntryRecord.SIZE);
+        if (run != null) grown.put(run.duplicate().limit(count * EntryRecord.SIZE).position(0)).clear();
+        run = grown;
+        times = times == null ? new long[capacity] : Arrays.copyOf(times, capacity);
+        order = new int[capacity];
+        buffer = new int[capacity];
+    }
+
+    private void spill() {
+        for (int i = 0; i < count; i++) order[i] = i;
+        sortByTime(0, count);
+
+        try {
+            Path runFile = Files.createTempFile(tempDir, "run-", ".bin");
+            runFiles.add(runFile);
+            try (FileChannel out = FileChannel.open(runFile, StandardOpenOption.WRITE)) {
+                ByteBuffer output = ByteBuffer.allocate(IO_BUFFER_RECORDS * EntryRecord.SIZE);
+                ByteBuffer source = run.duplicate();
+                for (int i = 0; i < count; i++) {
+                    int offset = order[i] * EntryRecord.SIZE;
+                    source.limit(offset + EntryRecord.SIZE).position(offset);
+                    output.put(source);
+                    if (!output.hasRemaining()) write(out, output);
+                }
+                write(out, output);
+            }
+        } catch (IOException e) {
+            close();
+            throw new UncheckedIOException(e);
+        }
+        count = 0;
+    }
+
+    /**
+     * Stable merge sort of order[from, to) by times, equal times keep the order they were added in
+     */
+    private void sortByTime(int from, int to) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        sortByTime(from, middle);
+        sortByTime(middle, to);
+        if (times[order[middle - 1]] <= times[order[middle]]) return;
+
+        int left = from;
+        int right = middle;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < middle && times[order[left]] <= times[order[right]])) buffer[i] = order[left++];
+            else buffer[i] = order[right++];
+        }
+        System.arraycopy(buffer, from, order, from, to - from);
+    }
+
+    private static void write(FileChannel out, ByteBuffer output) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) out.write(output);
+        output.clear();
+    }
+
+    /**
+     * Reads one sorted run sequentially through a small buffer
+     */
+    private static final class RunReader implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer input = ByteBuffer.allocate(IO_BUFFER_RECORDS * EntryRecord.SIZE);
+        private final int index;
+        private int offset = -EntryRecord.SIZE;
+
+        RunReader(Path path, int index) throws IOException {
+            this.index = index;
+            channel = FileChannel.open(path, StandardOpenOption.READ);
+            input.limit(0);
+        }
+
+        /**
+         * Moves to the next record, false when the run is exhausted
+         */
+        boolean next() throws IOException {
+            offset += EntryRecord.SIZE;
+            if (offset < input.limit()) return true;
+            input.clear();
+            while (input.hasRemaining()) {
+                if (channel.read(input) < 0) break;
+            }
+            input.flip();
+            offset = 0;
+            return input.limit() >= EntryRecord.SIZE;
+        }
+
+        long time() {
+            return EntryRecord.getTime(input, offset);
+        }
+
+        void copyTo(ByteBuffer output) {
+            ByteBuffer source = input.duplicate();
+            source.limit(offset + EntryRecord.SIZE).position(offset);
+            output.put(source);
+        }
+
+        @Override
+        public void close() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
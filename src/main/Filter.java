@@ -0,0 +1,190 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Row condition of a QL query: field equality, date range and their AND / OR combinations
+ */
+public abstract class Filter {
+    public abstract boolean matches(LogEntry entry);
+
+    /**
+     * Same as matches(LogEntry) for a row of the store, fields are read only when the condition needs them
+     */
+    abstract boolean matches(EntryStore entries, int row);
+
+    public static Filter eq(LogField field, Object value) {
+        return new Eq(field, value);
+    }
+
+    public static Filter between(Date after, Date before) {
+        return new Between(after, before);
+    }
+
+    public static Filter and(List<Filter> filters) {
+        return filters.size() == 1 ? filters.get(0) : new And(filters);
+    }
+
+    public static Filter or(List<Filter> filters) {
+        return filters.size() == 1 ? filters.get(0) : new Or(filters);
+    }
+
+    /**
+     * field = value
+     */
+    public static final class Eq extends Filter {
+        private final LogField field;
+        private final Object value;
+
+        private Eq(LogField field, Object value) {
+            this.field = field;
+            this.value = value;
+        }
+
+        public LogField getField() {
+            return field;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        @Override
+        public boolean matches(LogEntry entry) {
+            if (value == null) return false;
+            //Dates are compared by timestamp, lazy entries would otherwise create a Date per row
+            if (field == LogField.DATE) return entry.getTime() == ((Date) value).getTime();
+            return value.equals(field.valueOf(entry));
+        }
+
+        @Override
+        boolean matches(EntryStore entries, int row) {
+            if (value == null) return false;
+            if (field == LogField.DATE) return entries.getTime(row) == ((Date) value).getTime();
+            return value.equals(field.valueOf(entries, row));
+        }
+
+        @Override
+        public String toString() {
+            return field.name().toLowerCase() + " = \"" + field.formatValue(value) + "\"";
+        }
+    }
+
+    /**
+     * date between after and before, both ends included, null end means no limit
+     */
+    public static final class Between extends Filter {
+        private final Date after;
+        private final Date before;
+
+        private Between(Date after, Date before) {
+            this.after = after;
+            this.before = before;
+        }
+
+        public Date getAfter() {
+            return after;
+        }
+
+        public Date getBefore() {
+            return before;
+        }
+
+        @Override
+        public boolean matches(LogEntry entry) {
+            return contains(entry.getTime());
+        }
+
+        @Override
+        boolean matches(EntryStore entries, int row) {
+            return contains(entries.getTime(row));
+        }
+
+        private boolean contains(long time) {
+            return (after == null || time >= after.getTime()) && (before == null || time <= before.getTime());
+        }
+
+        @Override
+        public String toString() {
+            return "date between \"" + LogField.DATE.formatValue(after) + "\" and \"" + LogField.DATE.formatValue(before) + "\"";
+        }
+    }
+
+    public static final class And extends Filter {
+        private final List<Filter> filters;
+
+        private And(List<Filter> filters) {
+            this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+        }
+
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public boolean matches(LogEntry entry) {
+            for (Filter filter : filters) {
+                if (!filter.matches(entry)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        boolean matches(EntryStore entries, int row) {
+            for (Filter filter : filters) {
+                if (!filter.matches(entries, row)) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return join(filters, " and ");
+        }
+    }
+
+    public static final class Or extends Filter {
+        private final List<Filter> filters;
+
+        private Or(List<Filter> filters) {
+            this.filters = Collections.unmodifiableList(new ArrayList<>(filters));
+        }
+
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public boolean matches(LogEntry entry) {
+            for (Filter filter : filters) {
+                if (filter.matches(entry)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean matches(EntryStore entries, int row) {
+            for (Filter filter : filters) {
+                if (filter.matches(entries, row)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return join(filters, " or ");
+        }
+    }
+
+    private static String join(List<Filter> filters, String separator) {
+        StringBuilder sb = new StringBuilder("(");
+        for (int i = 0; i < filters.size(); i++) {
+            if (i > 0) sb.append(separator);
+            sb.append(filters.get(i));
+        }
+        return sb.append(")").toString();
+    }
+}
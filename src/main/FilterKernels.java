@@ -0,0 +1,45 @@
+package main;
+
+/**
+ * Filter kernels over primitive column arrays, each sets bit i of the output for every matching row from + i
+ * Loops are branch-free, compare and shift only, so the JIT can keep them in registers and unroll them
+ * The output is ORed into, callers clear it first
+ */
+final class FilterKernels {
+    private FilterKernels() {
+    }
+
+    static int words(int rows) {
+        return (rows + 63) >>> 6;
+    }
+
+    static void range(long[] column, int from, int to, long after, long before, long[] bits) {
+        for (int i = from; i < to; i++) {
+            long value = column[i];
+            long match = (value >= after ? 1L : 0L) & (value <= before ? 1L : 0L);
+            bits[(i - from) >>> 6] |= match << (i - from);
+        }
+    }
+
+    static void equal(int[] column, int from, int to, int expected, long[] bits) {
+        for (int i = from; i < to; i++) {
+            long match = column[i] == expected ? 1L : 0L;
+            bits[(i - from) >>> 6] |= match << (i - from);
+        }
+    }
+
+    static void equal(byte[] column, int from, int to, byte expected, long[] bits) {
+        for (int i = from; i < to; i++) {
+            long match = column[i] == expected ? 1L : 0L;
+            bits[(i - from) >>> 6] |= match << (i - from);
+        }
+    }
+
+    static void and(long[] bits, long[] other, int words) {
+        for (int i = 0; i < words; i++) bits[i] &= other[i];
+    }
+
+    static void or(long[] bits, long[] other, int words) {
+        for (int i = 0; i < words; i++) bits[i] |= other[i];
+    }
+}
@@ -0,0 +1,109 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hash table joining task attempts and completions in one pass
+ * Keys are (user id, task) pairs packed into a long, values are the first attempt and completion times,
+ * so rows add no objects except the id of each new user
+ */
+class FunnelTable {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final long NONE = Long.MAX_VALUE;
+
+    private final Map<String, Integer> userIds = new HashMap<>();
+    private final List<String> userNames = new ArrayList<>();
+    //Open addressing with linear probing, capacity is a power of two kept at most half full
+    private long[] keys = newKeys(1 << 10);
+    private long[] firstAttempts = new long[keys.length];
+    private long[] firstCompletions = new long[keys.length];
+    private int size;
+
+    public void add(String user, int task, long time, boolean completed) {
+        Integer userId = userIds.get(user);
+        if (userId == null) {
+            userId = userNames.size();
+            userIds.put(user, userId);
+            userNames.add(user);
+        }
+        int slot = slot(((long) userId << 32) | (task & 0xFFFFFFFFL));
+        if (completed) firstCompletions[slot] = Math.min(firstCompletions[slot], time);
+        else firstAttempts[slot] = Math.min(firstAttempts[slot], time);
+    }
+
+    /**
+     * Builds funnels of every task seen, sorted by task number
+     */
+    public Map<Integer, TaskFunnel> toFunnels() {
+        Map<Integer, Map<String, Long>> attempts = new TreeMap<>();
+        Map<Integer, Map<String, Long>> completions = new TreeMap<>();
+        for (int slot = 0; slot < keys.length; slot++) {
+            long key = keys[slot];
+            if (key == EMPTY) continue;
+            String user = userNames.get((int) (key >>> 32));
+            int task = (int) key;
+            Map<String, Long> taskAttempts = attempts.computeIfAbsent(task, k -> new HashMap<>());
+            Map<String, Long> taskCompletions = completions.computeIfAbsent(task, k -> new HashMap<>());
+            if (firstAttempts[slot] != NONE) taskAttempts.put(user, firstAttempts[slot]);
+            if (firstCompletions[slot] != NONE) taskCompletions.put(user, firstCompletions[slot]);
+        }
+        Map<Integer, TaskFunnel> funnels = new TreeMap<>();
+        for (Map.Entry<Integer, Map<String, Long>> task : attempts.entrySet()) {
+            funnels.put(task.getKey(), new TaskFunnel(task.getKey(), task.getValue(), completions.get(task.getKey())));
+        }
+        return funnels;
+    }
+
+    private int slot(long key) {
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        while (keys[slot] != EMPTY) {
+            if (keys[slot] == key) return slot;
+            slot = (slot + 1) & mask;
+        }
+        if (2 * (size + 1) > keys.length) {
+            grow();
+            return slot(key);
+        }
+        keys[slot] = key;
+        firstAttempts[slot] = NONE;
+        firstCompletions[slot] = NONE;
+        size++;
+        return slot;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldAttempts = firstAttempts;
+        long[] oldCompletions = firstCompletions;
+        keys = newKeys(oldKeys.length * 2);
+        firstAttempts = new long[keys.length];
+        firstCompletions = new long[keys.length];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] == EMPTY) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (keys[slot] != EMPTY) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            firstAttempts[slot] = oldAttempts[i];
+            firstCompletions[slot] = oldCompletions[i];
+        }
+    }
+
+    private static long[] newKeys(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+
+    private static int hash(long key) {
+        //Mixes user and task bits, neighbouring ids would otherwise fill neighbouring slots
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
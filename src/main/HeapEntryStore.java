@@ -0,0 +1,131 @@
+package main;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps LogEntry objects on the Java heap, used by EAGER and LAZY modes
+ */
+class HeapEntryStore implements AppendableEntryStore {
+    private ArrayList<LogEntry> entries = new ArrayList<>();
+
+    @Override
+    public void add(LogEntry entry) {
+        entries.add(entry);
+    }
+
+    @Override
+    public void trimToSize() {
+        entries.trimToSize();
+    }
+
+    @Override
+    public int size() {
+        return entries.size();
+    }
+
+    @Override
+    public LogEntry get(int row) {
+        return entries.get(row);
+    }
+
+    @Override
+    public long getTime(int row) {
+        return entries.get(row).getTime();
+    }
+
+    @Override
+    public String getIp(int row) {
+        return entries.get(row).getIp();
+    }
+
+    @Override
+    public String getUser(int row) {
+        return entries.get(row).getUser();
+    }
+
+    @Override
+    public Event getEvent(int row) {
+        return entries.get(row).getEvent();
+    }
+
+    @Override
+    public Status getStatus(int row) {
+        return entries.get(row).getStatus();
+    }
+
+    @Override
+    public int getTaskNumber(int row) {
+        return entries.get(row).getTaskNumber();
+    }
+
+    @Override
+    public long getEstimatedBytes() {
+        long bytes = MemoryUsage.arrayBytes(entries.size(), MemoryUsage.REFERENCE);
+        for (LogEntry entry : entries) bytes += entry.getEstimatedBytes();
+        return bytes;
+    }
+
+    @Override
+    public EntryStore uncached() {
+        return new Uncached();
+    }
+
+    @Override
+    public void close() {
+        entries = new ArrayList<>();
+    }
+
+    /**
+     * Reads fields through LogEntry read methods, lazy entries stay as small as they were
+     */
+    private final class Uncached implements EntryStore {
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        @Override
+        public LogEntry get(int row) {
+            return entries.get(row);
+        }
+
+        @Override
+        public long getTime(int row) {
+            return entries.get(row).getTime();
+        }
+
+        @Override
+        public String getIp(int row) {
+            return entries.get(row).readIp();
+        }
+
+        @Override
+        public String getUser(int row) {
+            return entries.get(row).readUser();
+        }
+
+        @Override
+        public Event getEvent(int row) {
+            return entries.get(row).getEvent();
+        }
+
+        @Override
+        public Status getStatus(int row) {
+            return entries.get(row).readStatus();
+        }
+
+        @Override
+        public int getTaskNumber(int row) {
+            return entries.get(row).readTaskNumber();
+        }
+
+        @Override
+        public long getEstimatedBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
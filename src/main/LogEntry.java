@@ -1,53 +1,136 @@
 package main;
 
+import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.GregorianCalendar;
 import java.util.List;
 
 /**
  * Helper class to LogParser, will split log entry into fields below
  * taskNumber null indicates no task number (only Event.ATTEMPT_TASK and Event.COMPLETE_TASK) have task numbers assigned
+ * In lazy mode only raw line bytes, date and event are kept, remaining fields are decoded and cached on first access
  */
 public class LogEntry {
+    private static final Event[] EVENTS = Event.values();
+    private static final Status[] STATUSES = Status.values();
+
     private String ip;
     private String user;
     private Date date;
+    private long time;
     private Event event;
     private Integer taskNumber = null;
-    private Status status;
+    //Status is written last when decoding lazily, so it also marks task number as decoded
+    private volatile Status status;
+    //Raw line is kept only in lazy mode
+    private byte[] raw;
 
     public String getIp() {
+        if (ip == null && raw != null) ip = decodeIp();
         return ip;
     }
 
     public String getUser() {
+        if (user == null && raw != null) user = decodeUser();
         return user;
     }
 
     public Date getDate() {
+        //Lazy entries keep only the timestamp, so each call gets its own Date
+        if (date == null) return new Date(time);
         return date;
     }
 
+    public long getTime() {
+        return time;
+    }
+
     public Event getEvent() {
         return event;
     }
 
     public int getTaskNumber() {
+        if (status == null && raw != null) decodeTail();
         return taskNumber;
     }
 
     public Status getStatus() {
+        if (status == null && raw != null) decodeTail();
         return status;
     }
 
+    /**
+     * Same as the getters, but a lazy entry decodes the field without keeping it
+     * Used for a single pass over rows no query asked for yet, like synopses built when a segment is sealed
+     */
+    String readIp() {
+        return ip != null || raw == null ? ip : decodeIp();
+    }
+
+    String readUser() {
+        return user != null || raw == null ? user : decodeUser();
+    }
+
+    int readTaskNumber() {
+        return status != null || raw == null ? taskNumber : decodeTaskNumber(tailStart());
+    }
+
+    Status readStatus() {
+        if (status != null || raw == null) return status;
+        int next = tailStart();
+        if (LogField.hasTask(event)) next = nextToken(tokenEnd(next));
+        return decodeStatus(next);
+    }
+
     public LogEntry(String entry) {
         //We will convert single line in the log into an entry, work will be done in the constructor
         parseEntry(entry);
     }
 
+    public LogEntry(String entry, boolean lazy) {
+        if (lazy) {
+            //Only header (date and event) is decoded now, the rest waits for the first query touching it
+            raw = entry.getBytes(StandardCharsets.UTF_8);
+            parseHeader();
+        }
+        else parseEntry(entry);
+    }
+
+    LogEntry(byte[] raw) {
+        //Lazy entry over line bytes read straight from a file, the caller hands over the array
+        this.raw = raw;
+        parseHeader();
+    }
+
+    LogEntry(String ip, String user, long time, Event event, Integer taskNumber, Status status) {
+        //Used by stores which keep fields in their own format and rebuild entries on read
+        this.ip = ip;
+        this.user = user;
+        this.time = time;
+        this.event = event;
+        this.taskNumber = taskNumber;
+        this.status = status;
+    }
+
+    /**
+     * Bytes held by this entry and the values only it references
+     * Lazy fields count as decoded, any query may decode them and segments take the estimate only once
+     */
+    long getEstimatedBytes() {
+        long bytes = MemoryUsage.align(MemoryUsage.OBJECT_HEADER + 7 * MemoryUsage.REFERENCE + Long.BYTES);
+        bytes += MemoryUsage.stringBytes(readIp()) + MemoryUsage.stringBytes(readUser());
+        if (date != null) bytes += MemoryUsage.DATE;
+        //Integer.valueOf shares boxes of small numbers
+        int task = LogField.hasTask(event) ? readTaskNumber() : 0;
+        if (task < -128 || task > 127) bytes += MemoryUsage.BOXED;
+        if (raw != null) bytes += MemoryUsage.arrayBytes(raw.length, 1);
+        return bytes;
+    }
+
     private void parseEntry(String entry) {
         //Entry has both spaces and tabs as separators, first we replace tabs with spaces
         String e = entry.replaceAll("\t", " ");
@@ -74,6 +157,7 @@ public class LogEntry {
         String dateTime = entryList.remove(0);
         String dateString = dateDate + " " + dateTime;
         date = parseDate(dateString);
+        if (date != null) time = date.getTime();
 
         //Next element is the event
         event = Event.valueOf(entryList.remove(0));
@@ -94,4 +178,101 @@ public class LogEntry {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Lazy decoding, works on token offsets in raw line bytes
+     */
+
+    private void parseHeader() {
+        int dateStart = dateTokenStart();
+        int timeEnd = tokenEnd(nextToken(tokenEnd(dateStart)));
+        time = parseTime(dateStart, timeEnd);
+        int eventStart = nextToken(timeEnd);
+        event = EVENTS[matchName(EVENTS, eventStart, tokenEnd(eventStart))];
+    }
+
+    private String decodeIp() {
+        int start = nextToken(0);
+        return new String(raw, start, tokenEnd(start) - start, StandardCharsets.UTF_8);
+    }
+
+    private String decodeUser() {
+        //User spans from the token after ip up to the date token, tabs inside are treated as spaces
+        int start = nextToken(tokenEnd(nextToken(0)));
+        int end = start;
+        for (int i = start; i < raw.length && !isDigit(raw[i]); i = nextToken(end)) end = tokenEnd(i);
+        return new String(raw, start, end - start, StandardCharsets.UTF_8).replace('\t', ' ');
+    }
+
+    private void decodeTail() {
+        int next = tailStart();
+        if (event.equals(Event.ATTEMPT_TASK) || event.equals(Event.COMPLETE_TASK)) {
+            taskNumber = decodeTaskNumber(next);
+            next = nextToken(tokenEnd(next));
+        }
+        status = decodeStatus(next);
+    }
+
+    private int tailStart() {
+        //Token after the event: task number or status
+        int dateStart = dateTokenStart();
+        int eventStart = nextToken(tokenEnd(nextToken(tokenEnd(dateStart))));
+        return nextToken(tokenEnd(eventStart));
+    }
+
+    private int decodeTaskNumber(int start) {
+        return Integer.parseInt(new String(raw, start, tokenEnd(start) - start, StandardCharsets.US_ASCII));
+    }
+
+    private Status decodeStatus(int start) {
+        return STATUSES[matchName(STATUSES, start, tokenEnd(start))];
+    }
+
+    private int dateTokenStart() {
+        //Skip ip, then user tokens until first token starting with a digit
+        int start = nextToken(tokenEnd(nextToken(0)));
+        while (start < raw.length && !isDigit(raw[start])) start = nextToken(tokenEnd(start));
+        return start;
+    }
+
+    private long parseTime(int start, int end) {
+        //Date looks like d.M.yyyy H:m:s, fields are read in order: day, month, year, hour, minute, second
+        int[] fields = new int[6];
+        int field = 0;
+        for (int i = start; i < end && field < fields.length; i++) {
+            if (isDigit(raw[i])) fields[field] = fields[field] * 10 + (raw[i] - '0');
+            else field++;
+        }
+        //Calendar is lenient like SimpleDateFormat, so out of range values roll over the same way
+        return new GregorianCalendar(fields[2], fields[1] - 1, fields[0], fields[3], fields[4], fields[5]).getTimeInMillis();
+    }
+
+    private int matchName(Enum<?>[] values, int start, int end) {
+        for (Enum<?> value : values) {
+            String name = value.name();
+            if (name.length() != end - start) continue;
+            int i = 0;
+            while (i < name.length() && name.charAt(i) == raw[start + i]) i++;
+            if (i == name.length()) return value.ordinal();
+        }
+        throw new IllegalArgumentException("Unknown value in log line: " + new String(raw, StandardCharsets.UTF_8));
+    }
+
+    private int nextToken(int from) {
+        while (from < raw.length && isSeparator(raw[from])) from++;
+        return from;
+    }
+
+    private int tokenEnd(int from) {
+        while (from < raw.length && !isSeparator(raw[from])) from++;
+        return from;
+    }
+
+    private static boolean isSeparator(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+}
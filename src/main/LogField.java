@@ -0,0 +1,104 @@
+package main;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Fields of a log entry which can be used in QL queries
+ */
+public enum LogField {
+    IP,
+    USER,
+    DATE,
+    EVENT,
+    STATUS,
+    TASK;
+
+    /**
+     * Returns value of this field in given entry, null for TASK when the event has no task number
+     */
+    public Object valueOf(LogEntry entry) {
+        switch (this) {
+            case IP:
+                return entry.getIp();
+            case USER:
+                return entry.getUser();
+            case DATE:
+                return entry.getDate();
+            case EVENT:
+                return entry.getEvent();
+            case STATUS:
+                return entry.getStatus();
+            default:
+                return hasTask(entry.getEvent()) ? entry.getTaskNumber() : null;
+        }
+    }
+
+    /**
+     * Same as valueOf(LogEntry) for a row of the store, only the needed field is read
+     */
+    Object valueOf(EntryStore entries, int row) {
+        switch (this) {
+            case IP:
+                return entries.getIp(row);
+            case USER:
+                return entries.getUser(row);
+            case DATE:
+                return new Date(entries.getTime(row));
+            case EVENT:
+                return entries.getEvent(row);
+            case STATUS:
+                return entries.getStatus(row);
+            default:
+                return hasTask(entries.getEvent(row)) ? entries.getTaskNumber(row) : null;
+        }
+    }
+
+    /**
+     * Converts query text into value of this field, dates that cannot be parsed give null
+     */
+    public Object parseValue(String value) {
+        switch (this) {
+            case DATE:
+                return parseDate(value);
+            case EVENT:
+                return Event.valueOf(value);
+            case STATUS:
+                return Status.valueOf(value);
+            case TASK:
+                return Integer.parseInt(value);
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * Converts value of this field back into query text
+     */
+    public String formatValue(Object value) {
+        if (value == null) return "";
+        if (this == DATE) return new SimpleDateFormat("dd.MM.yyyy HH:mm:ss").format((Date) value);
+        return String.valueOf(value);
+    }
+
+    public static LogField fromName(String name) {
+        for (LogField field : values()) {
+            if (field.name().equalsIgnoreCase(name)) return field;
+        }
+        throw new IllegalArgumentException("Unknown field: " + name);
+    }
+
+    static boolean hasTask(Event event) {
+        return event.equals(Event.ATTEMPT_TASK) || event.equals(Event.COMPLETE_TASK);
+    }
+
+    private static Date parseDate(String dateString) {
+        SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
+        try {
+            return sdf.parse(dateString);
+        } catch (ParseException e) {
+            return null;
+        }
+    }
+}
@@ -3,61 +3,751 @@ package main;
 import main.query.*;
 
 import java.io.*;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+public class LogParser implements IPQuery, UserQuery, DateQuery, DateMillisQuery, EventQuery, FunnelQuery, QLQuery, Closeable {
+    public static final Duration DEFAULT_PARTITION_SIZE = Duration.ofDays(1);
+    //Memory DISK mode splits between sort runs and its page cache
+    public static final long DEFAULT_MEMORY_BUDGET = 64L << 20;
+    //Budget of parsers which only account memory, DISK mode then sorts and caches within DEFAULT_MEMORY_BUDGET
+    public static final long NO_MEMORY_BUDGET = Long.MAX_VALUE;
+    //Larger files are split into several segments per partition
+    private static final int MAX_SEGMENT_ROWS = 1 << 16;
+    //Smaller segments of a partition are merged once there are more than MAX_SMALL_SEGMENTS of them
+    private static final int MIN_SEGMENT_ROWS = 1 << 12;
+    private static final int MAX_SMALL_SEGMENTS = 4;
+    //Bounds of the executor running asynchronous queries, queries beyond them are rejected instead of queued forever
+    private static final int QUERY_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final int QUERY_QUEUE_CAPACITY = 256;
+    private static final int CHECKPOINT_MASK = (1 << 12) - 1;
 
-public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQuery {
     private Path logDir;
-    private List<LogEntry> entries;
+    private StorageMode mode;
+    private long partitionMillis;
+    private Predicate<Path> fileFilter;
+    //Partitions keyed by start of their time bucket, readers pin the current snapshot, writers publish a new one
+    private volatile Snapshot snapshot = new Snapshot(new TreeMap<>(), false);
+    //Appends, retention and close take turns on this lock, queries never take it
+    private final Object writeLock = new Object();
+    private ExecutorService ingestionExecutor;
+    //Query executor is created and shut down under its own lock, so submitting never waits for an append
+    private final Object queryExecutorLock = new Object();
+    private ExecutorService queryExecutor;
+    //Dictionaries are shared by columnar, off-heap and disk segments, null in EAGER and LAZY modes
+    private StringDictionary ipDictionary;
+    private StringDictionary userDictionary;
+    //DISK mode only: records in one sort run, cache of pages read from data files and directory holding the files
+    private int sortRunRecords;
+    private PageCache pageCache;
+    private Path spillDir;
+    private long retentionMillis = Long.MAX_VALUE;
+    private volatile long memoryBudget;
+    private volatile boolean closed;
 
     public LogParser(Path logDir) {
+        this(logDir, StorageMode.EAGER);
+    }
+
+    public LogParser(Path logDir, StorageMode mode) {
+        this(logDir, mode, DEFAULT_PARTITION_SIZE);
+    }
+
+    public LogParser(Path logDir, StorageMode mode, Duration partitionSize) {
+        this(logDir, mode, partitionSize, file -> true);
+    }
+
+    /**
+     * fileFilter selects which .log files under logDir are loaded, workers use it to split one directory between them
+     */
+    public LogParser(Path logDir, StorageMode mode, Duration partitionSize, Predicate<Path> fileFilter) {
+        this(logDir, mode, partitionSize, fileFilter, NO_MEMORY_BUDGET);
+    }
+
+    /**
+     * memoryBudget is the number of bytes the parser may hold, see setMemoryBudget, NO_MEMORY_BUDGET for no limit
+     * DISK mode also sorts and caches records within it, half for each
+     * Directories larger than the budget are spilled into temp files, only dictionaries grow beyond it
+     */
+    public LogParser(Path logDir, StorageMode mode, Duration partitionSize, Predicate<Path> fileFilter, long memoryBudget) {
         this.logDir = logDir;
-        entries = new ArrayList<>();
-        extractEntries(logDir);
+        this.mode = mode;
+        this.fileFilter = fileFilter;
+        this.partitionMillis = partitionSize.toMillis();
+        if (partitionMillis <= 0) throw new IllegalArgumentException("Partition size must be positive: " + partitionSize);
+        if (mode == StorageMode.COLUMNAR || mode == StorageMode.OFF_HEAP || mode == StorageMode.DISK) {
+            ipDictionary = new StringDictionary();
+            userDictionary = new StringDictionary();
+        }
+        this.memoryBudget = memoryBudget;
+        if (mode == StorageMode.DISK) {
+            long half = (memoryBudget == NO_MEMORY_BUDGET ? DEFAULT_MEMORY_BUDGET : memoryBudget) / 2;
+            if (half < ExternalSorter.BYTES_PER_ENTRY + PageCache.PAGE_BYTES) throw new IllegalArgumentException("Memory budget is too small: " + memoryBudget);
+            sortRunRecords = (int) Math.min(Integer.MAX_VALUE / EntryRecord.SIZE, half / ExternalSorter.BYTES_PER_ENTRY);
+            pageCache = new PageCache((int) Math.min(Integer.MAX_VALUE, half / PageCache.PAGE_BYTES));
+        }
+        try {
+            append(logDir);
+        } catch (RuntimeException e) {
+            //Directory did not fit the budget, spilled files are removed before giving up
+            close();
+            throw e;
+        }
+    }
+
+    private AppendableEntryStore createStore() {
+        if (mode == StorageMode.COLUMNAR) return new ColumnarEntryStore(ipDictionary, userDictionary);
+        if (mode == StorageMode.OFF_HEAP) return new OffHeapEntryStore(ipDictionary, userDictionary);
+        return new HeapEntryStore();
+    }
+
+    /**
+     * Releases memory held by entries, off-heap memory is freed once running queries finish
+     * Any query made after closing throws IllegalStateException, futures of queued asynchronous calls fail with it
+     */
+    @Override
+    public void close() {
+        synchronized (writeLock) {
+            if (closed) return;
+            closed = true;
+            if (ingestionExecutor != null) failQueued(ingestionExecutor.shutdownNow());
+            synchronized (queryExecutorLock) {
+                if (queryExecutor != null) failQueued(queryExecutor.shutdownNow());
+            }
+            publish(new TreeMap<>());
+            //Data files are deleted as their segments close, the directory goes once it is empty
+            if (spillDir != null) spillDir.toFile().delete();
+        }
+    }
+
+    private static void failQueued(List<Runnable> tasks) {
+        //Nothing else would ever complete futures of tasks which did not start
+        for (Runnable task : tasks) ((AsyncTask) task).fail(new IllegalStateException("Log parser is closed"));
     }
 
-    private void extractEntries(Path logDir) {
+    /**
+     * Ingestion methods
+     */
+
+    /**
+     * Loads .log files from given file or directory and publishes them as new segments
+     * Queries running meanwhile keep reading the snapshot they started with
+     * Throws IllegalStateException when the memory budget is exceeded, see setMemoryBudget
+     */
+    public void append(Path path) {
+        synchronized (writeLock) {
+            checkOpen();
+            if (memoryBudget != NO_MEMORY_BUDGET) {
+                MemoryUsage usage = enforceMemoryBudget();
+                if (usage.getTotalBytes() > memoryBudget) throw budgetExceeded(usage);
+            }
+            List<File> files = new ArrayList<>();
+            extractEntries(path, files);
+            if (mode == StorageMode.DISK) extractSorted(files);
+            else for (File file : files) extractFile(file);
+            applyRetention();
+        }
+    }
+
+    /**
+     * Same as append, done on a background ingestion thread
+     * After close the future fails with IllegalStateException
+     */
+    public CompletableFuture<Void> appendAsync(Path path) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        synchronized (writeLock) {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Log parser is closed"));
+                return future;
+            }
+            if (ingestionExecutor == null) {
+                ingestionExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "log-parser-ingestion");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            ingestionExecutor.execute(new AsyncTask(future, () -> {
+                try {
+                    append(path);
+                    future.complete(null);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                }
+            }));
+            return future;
+        }
+    }
+
+    private void extractEntries(Path logDir, List<File> files) {
         File dir = logDir.toFile();
+        if (dir.isFile()) {
+            if (isLogFile(dir)) files.add(dir);
+            return;
+        }
         File[] dirList = dir.listFiles();
 
         for (File file : dirList) {
             if (file.isDirectory()) {
                 Path newPath = Paths.get(file.getAbsolutePath());
-                extractEntries(newPath);
+                extractEntries(newPath, files);
             }
-            else {
-                if (file.getName().endsWith(".log")){
-                    try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))){
-                        String line = br.readLine();
-                        while (line != null){
-                            entries.add(new LogEntry(line));
-                            line = br.readLine();
-                        }
-                    } catch (IOException ignored) {
+            else if (isLogFile(file)) files.add(file);
+        }
+    }
+
+    private boolean isLogFile(File file) {
+        return file.getName().endsWith(".log") && fileFilter.test(file.toPath());
+    }
+
+    private void readEntries(File file, Consumer<LogEntry> consumer) {
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file)))){
+            String line = br.readLine();
+            while (line != null){
+                //Off-heap and disk records take every field anyway, lazy parsing just skips the slow eager path
+                consumer.accept(new LogEntry(line, mode != StorageMode.EAGER));
+                line = br.readLine();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void extractFile(File file) {
+        //Rows are collected per partition, full builders are sealed right away, the rest when file ends
+        Map<Long, AppendableEntryStore> builders = new HashMap<>();
+        Map<Long, List<Segment>> sealed = new HashMap<>();
+        readEntries(file, entry -> {
+            long key = partitionKey(entry.getTime());
+            AppendableEntryStore builder = builders.computeIfAbsent(key, k -> createStore());
+            builder.add(entry);
+            if (builder.size() == MAX_SEGMENT_ROWS) {
+                sealed.computeIfAbsent(key, k -> new ArrayList<>()).add(seal(builder));
+                builders.remove(key);
+            }
+        });
+        for (Map.Entry<Long, AppendableEntryStore> builder : builders.entrySet()) {
+            sealed.computeIfAbsent(builder.getKey(), k -> new ArrayList<>()).add(seal(builder.getValue()));
+        }
+        publishSegments(sealed);
+    }
+
+    private static Segment seal(AppendableEntryStore builder) {
+        builder.trimToSize();
+        return new Segment(builder);
+    }
+
+    /**
+     * DISK mode: all files of one append go through a single external sort, so memory stays within the budget
+     * however many partitions the files touch, merged output is published as time ordered segments
+     */
+    private void extractSorted(List<File> files) {
+        try (ExternalSorter sorter = new ExternalSorter(getSpillDir(), sortRunRecords, ipDictionary, userDictionary)) {
+            for (File file : files) readEntries(file, sorter::add);
+            Map<Long, List<Segment>> sealed = new HashMap<>();
+            for (Segment segment : sorter.finish(pageCache, MAX_SEGMENT_ROWS, this::partitionKey)) {
+                sealed.computeIfAbsent(partitionKey(segment.getMinTime()), k -> new ArrayList<>()).add(segment);
+            }
+            publishSegments(sealed);
+        }
+    }
+
+    private Path getSpillDir() {
+        if (spillDir == null) {
+            try {
+                spillDir = Files.createTempDirectory("log-parser-");
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            spillDir.toFile().deleteOnExit();
+        }
+        return spillDir;
+    }
+
+    private void publishSegments(Map<Long, List<Segment>> sealed) {
+        if (sealed.isEmpty()) return;
+        if (memoryBudget != NO_MEMORY_BUDGET) enforceMemoryBudget();
+        NavigableMap<Long, Partition> partitions = new TreeMap<>(snapshot.getPartitions());
+        //Segments made by this append, closed again when it does not fit the budget
+        List<Segment> created = new ArrayList<>();
+        for (Map.Entry<Long, List<Segment>> added : sealed.entrySet()) {
+            Partition partition = partitions.get(added.getKey());
+            List<Segment> segments = partition == null ? new ArrayList<>() : new ArrayList<>(partition.getSegments());
+            segments.addAll(added.getValue());
+            created.addAll(added.getValue());
+            partitions.put(added.getKey(), new Partition(added.getKey(), segments));
+        }
+        mergeSmallSegments(partitions, sealed.keySet(), created);
+        if (memoryBudget != NO_MEMORY_BUDGET) {
+            //New segments count before they are published, a file which does not fit is not published at all
+            List<Segment> segments = new ArrayList<>();
+            for (Partition partition : partitions.values()) segments.addAll(partition.getSegments());
+            MemoryUsage usage = measure(segments);
+            if (usage.getTotalBytes() > memoryBudget) {
+                for (Segment segment : created) segment.close();
+                throw budgetExceeded(usage);
+            }
+        }
+        publish(partitions);
+    }
+
+    /**
+     * Files of a few rows each would leave a partition with a segment per file, each with its own statistics and zone map
+     * so segments under MIN_SEGMENT_ROWS are copied together into segments of up to MAX_SEGMENT_ROWS rows
+     * Waiting for a few of them keeps appends of small files from copying the same rows again on every append
+     * DISK rows of all merged partitions go through one external sort into one new data file,
+     * files of merged segments are deleted once their last segment is retired
+     */
+    private void mergeSmallSegments(NavigableMap<Long, Partition> partitions, Set<Long> keys, List<Segment> created) {
+        Map<Long, List<Segment>> small = new HashMap<>();
+        for (Long key : keys) {
+            List<Segment> candidates = new ArrayList<>();
+            for (Segment segment : partitions.get(key).getSegments()) {
+                if (segment.size() < MIN_SEGMENT_ROWS) candidates.add(segment);
+            }
+            if (candidates.size() > MAX_SMALL_SEGMENTS) small.put(key, candidates);
+        }
+        if (small.isEmpty()) return;
+
+        Map<Long, List<Segment>> merged = mode == StorageMode.DISK ? mergeSorted(small) : mergeCopied(small);
+        for (Map.Entry<Long, List<Segment>> partition : small.entrySet()) {
+            Long key = partition.getKey();
+            Set<Segment> replaced = Collections.newSetFromMap(new IdentityHashMap<>());
+            replaced.addAll(partition.getValue());
+            List<Segment> segments = new ArrayList<>();
+            for (Segment segment : partitions.get(key).getSegments()) {
+                if (!replaced.contains(segment)) segments.add(segment);
+            }
+            for (Segment segment : merged.getOrDefault(key, Collections.emptyList())) {
+                segments.add(segment);
+                created.add(segment);
+            }
+            partitions.put(key, new Partition(key, segments));
+            //Published segments are retired by publish, new ones were never seen by a reader
+            for (Segment segment : replaced) {
+                if (created.remove(segment)) segment.close();
+            }
+        }
+    }
+
+    private Map<Long, List<Segment>> mergeCopied(Map<Long, List<Segment>> small) {
+        Map<Long, List<Segment>> merged = new HashMap<>();
+        for (Map.Entry<Long, List<Segment>> partition : small.entrySet()) {
+            List<Segment> segments = new ArrayList<>();
+            AppendableEntryStore builder = createStore();
+            for (Segment segment : partition.getValue()) {
+                EntryStore entries = segment.getEntries();
+                for (int row = 0; row < entries.size(); row++) {
+                    builder.add(entries.get(row));
+                    if (builder.size() == MAX_SEGMENT_ROWS) {
+                        segments.add(seal(builder));
+                        builder = createStore();
                     }
                 }
             }
+            if (builder.size() > 0) segments.add(seal(builder));
+            merged.put(partition.getKey(), segments);
+        }
+        return merged;
+    }
+
+    private Map<Long, List<Segment>> mergeSorted(Map<Long, List<Segment>> small) {
+        Map<Long, List<Segment>> merged = new HashMap<>();
+        try (ExternalSorter sorter = new ExternalSorter(getSpillDir(), sortRunRecords, ipDictionary, userDictionary)) {
+            for (List<Segment> segments : small.values()) {
+                for (Segment segment : segments) {
+                    EntryStore entries = segment.getEntries().reader();
+                    for (int row = 0; row < entries.size(); row++) sorter.add(entries.get(row));
+                }
+            }
+            for (Segment segment : sorter.finish(pageCache, MAX_SEGMENT_ROWS, this::partitionKey)) {
+                merged.computeIfAbsent(partitionKey(segment.getMinTime()), k -> new ArrayList<>()).add(segment);
+            }
+        }
+        return merged;
+    }
+
+    private void publish(NavigableMap<Long, Partition> partitions) {
+        //Called under writeLock with a fresh map, segments the map no longer has (dropped partitions, merged segments)
+        //are closed once older snapshots drain
+        Snapshot previous = snapshot;
+        Snapshot next = new Snapshot(partitions, true);
+        Set<Segment> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Partition partition : partitions.values()) kept.addAll(partition.getSegments());
+        List<Segment> retired = new ArrayList<>();
+        for (Partition partition : previous.getPartitions().values()) {
+            for (Segment segment : partition.getSegments()) {
+                if (!kept.contains(segment)) retired.add(segment);
+            }
+        }
+        snapshot = next;
+        previous.replace(next, retired);
+    }
+
+    private long partitionKey(long time) {
+        return Math.floorDiv(time, partitionMillis) * partitionMillis;
+    }
+
+    /**
+     * Retention methods
+     */
+
+    /**
+     * Keeps only partitions that have entries from the last given number of days, older ones are evicted right away
+     */
+    public void setRetentionDays(int days) {
+        if (days <= 0) throw new IllegalArgumentException("Retention must be at least one day: " + days);
+        synchronized (writeLock) {
+            retentionMillis = Duration.ofDays(days).toMillis();
+            applyRetention();
+        }
+    }
+
+    /**
+     * Evicts whole partitions which ended before the retention window, returns number of evicted partitions
+     * Dictionary entries of evicted rows are kept, they are still shared with remaining partitions
+     */
+    public int applyRetention() {
+        synchronized (writeLock) {
+            if (closed || retentionMillis == Long.MAX_VALUE) return 0;
+            long cutoff = System.currentTimeMillis() - retentionMillis;
+            //Every partition starting before the cutoff bucket ends before the cutoff, so it can be dropped without looking at rows
+            NavigableMap<Long, Partition> current = snapshot.getPartitions();
+            int count = current.headMap(partitionKey(cutoff), false).size();
+            if (count > 0) publish(new TreeMap<>(current.tailMap(partitionKey(cutoff), true)));
+            return count;
+        }
+    }
+
+    public int getPartitionCount() {
+        return snapshot.getPartitions().size();
+    }
+
+    /**
+     * Asynchronous query methods
+     */
+
+    /**
+     * Runs any query method on the bounded query executor, for example submit(p -> p.getUniqueIPs(null, null), Duration.ofSeconds(2))
+     * When deadline passes the future fails with TimeoutException, cancelling the future has the same effect on the query:
+     * its scan stops at the next cancellation point and frees the thread
+     * When the executor queue is full the future fails with RejectedExecutionException right away,
+     * after close with IllegalStateException
+     */
+    public <T> CompletableFuture<T> submit(Function<? super LogParser, ? extends T> query, Duration deadline) {
+        QueryContext context = new QueryContext(deadline);
+        CompletableFuture<T> future = new CompletableFuture<>();
+        //Whatever completes the future first (result, cancel, timeout) stops the scan
+        future.whenComplete((result, error) -> context.cancel());
+        if (deadline != null) future.orTimeout(deadline.toNanos(), TimeUnit.NANOSECONDS);
+        try {
+            getQueryExecutor().execute(new AsyncTask(future, () -> {
+                //Query might have been cancelled or timed out while waiting in the queue
+                if (future.isDone()) return;
+                context.bind();
+                try {
+                    future.complete(query.apply(this));
+                } catch (CancellationException e) {
+                    //Scan noticed the deadline before the timer did, report it the same way
+                    future.completeExceptionally(context.isExpired() ? new TimeoutException(e.getMessage()) : e);
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    QueryContext.unbind();
+                }
+            }));
+        } catch (RejectedExecutionException | IllegalStateException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    public <T> CompletableFuture<T> submit(Function<? super LogParser, ? extends T> query) {
+        return submit(query, null);
+    }
+
+    public CompletableFuture<Set<Object>> executeAsync(String query, Duration deadline) {
+        return submit(parser -> parser.execute(query), deadline);
+    }
+
+    /**
+     * Runnable of an asynchronous call, keeps its future so close() can fail it when the call never ran
+     */
+    private static final class AsyncTask implements Runnable {
+        private final CompletableFuture<?> future;
+        private final Runnable call;
+
+        AsyncTask(CompletableFuture<?> future, Runnable call) {
+            this.future = future;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            call.run();
+        }
+
+        void fail(Throwable error) {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private ExecutorService getQueryExecutor() {
+        synchronized (queryExecutorLock) {
+            checkOpen();
+            if (queryExecutor == null) {
+                queryExecutor = new ThreadPoolExecutor(QUERY_THREADS, QUERY_THREADS, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<>(QUERY_QUEUE_CAPACITY), runnable -> {
+                    Thread thread = new Thread(runnable, "log-parser-query");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return queryExecutor;
         }
     }
 
-    private List<LogEntry> getEntriesByDate(Date after, Date before){
-        List<LogEntry> result = new ArrayList<>();
-        long afterMs = Long.MIN_VALUE;
-        long beforeMs = Long.MAX_VALUE;
+    /**
+     * Scan methods
+     */
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Log parser is closed");
+    }
+
+    private Snapshot pin() {
+        while (true) {
+            checkOpen();
+            Snapshot current = snapshot;
+            if (current.tryPin()) return current;
+        }
+    }
 
-        if (after != null) afterMs = after.getTime();
-        if (before != null) beforeMs = before.getTime();
+    /**
+     * Called for each row of a scan, reads what it needs from the store
+     */
+    private interface RowVisitor {
+        void visit(EntryStore entries, int row);
+    }
+
+    private void scanRows(long afterMs, long beforeMs, RowVisitor visitor) {
+        scan(null, afterMs, beforeMs, visitor);
+    }
+
+    private QueryPlan scan(Filter filter, Date after, Date before, RowVisitor visitor) {
+        return scan(filter, afterMillis(after), beforeMillis(before), visitor);
+    }
+
+    /**
+     * Visits rows within the date range which match the filter (null matches every row)
+     * QueryPlanner decides from segment statistics whether rows are scanned or looked up in a segment index
+     * Returned plan holds the estimates and actual row counts
+     */
+    private QueryPlan scan(Filter filter, long afterMs, long beforeMs, RowVisitor visitor) {
+        //Snapshot stays consistent for the whole scan, even if segments are appended or evicted meanwhile
+        Snapshot pinned = pin();
+        //Asynchronous queries check for cancellation once per block and every CHECKPOINT_MASK + 1 index rows
+        QueryContext context = QueryContext.current();
+        try {
+            List<Segment> segments = getSegments(pinned, afterMs, beforeMs);
+            QueryPlan plan = QueryPlanner.plan(segments, filter, afterMs, beforeMs);
+            if (plan.getIndexCondition() != null && memoryBudget != NO_MEMORY_BUDGET
+                    && !fitsIndexes(pinned, segments, plan.getIndexCondition().getField())) {
+                plan = QueryPlanner.plan(segments, filter, afterMs, beforeMs, false);
+            }
+            Filter.Eq indexCondition = plan.getIndexCondition();
+            long scanned = 0;
+            long matched = 0;
+            long[] selection = new long[FilterKernels.words(ZoneMap.BLOCK_ROWS)];
+            long[][] scratch = null;
+            for (Segment segment : segments) {
+                EntryStore entries = segment.getEntries().reader();
+                if (indexCondition != null) {
+                    int[] rows = segment.getRows(indexCondition.getField(), indexCondition.getValue());
+                    //Segment lying fully inside the range needs no per row checks
+                    boolean covered = segment.getMinTime() >= afterMs && segment.getMaxTime() <= beforeMs;
+                    scanned += rows.length;
+                    for (int i = 0; i < rows.length; i++) {
+                        if (context != null && (i & CHECKPOINT_MASK) == 0) context.checkpoint();
+                        if (visitRow(entries, rows[i], covered, filter, afterMs, beforeMs, visitor)) matched++;
+                    }
+                    continue;
+                }
+                //Blocks whose zone map rules out the range or the filter are skipped without reading their rows
+                ZoneMap zoneMap = segment.getZoneMap();
+                for (int block = 0; block < zoneMap.getBlocks(); block++) {
+                    if (!zoneMap.mayMatch(block, filter, afterMs, beforeMs)) continue;
+                    if (context != null) context.checkpoint();
+                    int first = zoneMap.getFirstRow(block);
+                    int end = zoneMap.getEndRow(block);
+                    scanned += end - first;
+                    if (entries instanceof ColumnarEntryStore) {
+                        //Columns are filtered for the whole block first, then only selected rows are visited
+                        if (scratch == null) scratch = ColumnarEntryStore.scratchFor(filter);
+                        ((ColumnarEntryStore) entries).select(first, end, filter, afterMs, beforeMs, selection, scratch);
+                        for (int word = 0; word < FilterKernels.words(end - first); word++) {
+                            for (long bits = selection[word]; bits != 0; bits &= bits - 1) {
+                                visitor.visit(entries, first + (word << 6) + Long.numberOfTrailingZeros(bits));
+                                matched++;
+                            }
+                        }
+                        continue;
+                    }
+                    boolean covered = zoneMap.isCovered(block, afterMs, beforeMs);
+                    for (int row = first; row < end; row++) {
+                        if (visitRow(entries, row, covered, filter, afterMs, beforeMs, visitor)) matched++;
+                    }
+                }
+            }
+            plan.setActualRows(scanned, matched);
+            return plan;
+        } finally {
+            pinned.unpin();
+        }
+    }
 
-        for (LogEntry entry : entries) {
-            long entryMs = entry.getDate().getTime();
+    private static boolean visitRow(EntryStore entries, int row, boolean covered, Filter filter, long afterMs, long beforeMs, RowVisitor visitor) {
+        if (!covered) {
             //We check if given date is within range, including before and after dates
-            if (entryMs >= afterMs && entryMs <= beforeMs) result.add(entry);
+            long entryMs = entries.getTime(row);
+            if (entryMs < afterMs || entryMs > beforeMs) return false;
         }
+        if (filter != null && !filter.matches(entries, row)) return false;
+        visitor.visit(entries, row);
+        return true;
+    }
 
-        return result;
+    private static List<Segment> getSegments(Snapshot snapshot, long afterMs, long beforeMs) {
+        //Only partitions starting from the one holding afterMs up to beforeMs can overlap the range
+        NavigableMap<Long, Partition> range = snapshot.getPartitions().headMap(beforeMs, true);
+        Long fromKey = range.floorKey(afterMs);
+        if (fromKey != null) range = range.tailMap(fromKey, true);
+
+        List<Segment> segments = new ArrayList<>();
+        for (Partition partition : range.values()) {
+            if (partition.getMaxTime() < afterMs || partition.getMinTime() > beforeMs) continue;
+            for (Segment segment : partition.getSegments()) {
+                if (segment.getMaxTime() >= afterMs && segment.getMinTime() <= beforeMs) segments.add(segment);
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Statistics methods
+     */
+
+    /**
+     * Column statistics collected while loading, the planner estimates query costs from them
+     */
+    public LogStatistics getStatistics() {
+        Snapshot pinned = pin();
+        try {
+            return new LogStatistics(pinned.getPartitions().values());
+        } finally {
+            pinned.unpin();
+        }
+    }
+
+    /**
+     * Memory methods
+     */
+
+    /**
+     * Estimated bytes held by entries, dictionaries, indexes, statistics and caches
+     */
+    public MemoryUsage getMemoryUsage() {
+        Snapshot pinned = pin();
+        try {
+            return measure(getSegments(pinned));
+        } finally {
+            pinned.unpin();
+        }
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * Sets the number of bytes the parser may hold, as estimated by getMemoryUsage, NO_MEMORY_BUDGET for no limit
+     * Over the budget postings indexes and cached pages are dropped first, queries scan instead of building new indexes
+     * When that is not enough appends are refused with IllegalStateException, a file that does not fit is not loaded at all
+     * Strings of refused rows may stay in the dictionaries
+     * DISK mode keeps sorting and caching within the budget given to the constructor
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) throw new IllegalArgumentException("Memory budget must be positive: " + bytes);
+        synchronized (writeLock) {
+            memoryBudget = bytes;
+            if (!closed) enforceMemoryBudget();
+        }
+    }
+
+    /**
+     * Drops caches when usage is over the budget, returns usage after that
+     */
+    private MemoryUsage enforceMemoryBudget() {
+        List<Segment> segments = getSegments(snapshot);
+        MemoryUsage usage = measure(segments);
+        if (usage.getTotalBytes() <= memoryBudget) return usage;
+        for (Segment segment : segments) segment.dropIndexes();
+        if (pageCache != null) pageCache.clear();
+        return measure(segments);
+    }
+
+    /**
+     * True when indexes of the field for every segment missing one still fit the budget
+     */
+    private boolean fitsIndexes(Snapshot pinned, List<Segment> segments, LogField field) {
+        long needed = 0;
+        for (Segment segment : segments) {
+            //Index holds a row number for each row, entries for the values are comparatively few
+            if (!segment.hasIndex(field)) needed += MemoryUsage.arrayBytes(segment.size(), Integer.BYTES);
+        }
+        return needed == 0 || measure(getSegments(pinned)).getTotalBytes() + needed <= memoryBudget;
+    }
+
+    private MemoryUsage measure(List<Segment> segments) {
+        long rows = 0;
+        long entryBytes = 0;
+        long indexBytes = 0;
+        long synopsisBytes = 0;
+        for (Segment segment : segments) {
+            rows += segment.size();
+            entryBytes += segment.getEntryBytes();
+            indexBytes += segment.getIndexBytes();
+            synopsisBytes += segment.getSynopsisBytes();
+        }
+        long dictionaryBytes = ipDictionary == null ? 0 : ipDictionary.getEstimatedBytes() + userDictionary.getEstimatedBytes();
+        long pageCacheBytes = pageCache == null ? 0 : pageCache.getEstimatedBytes();
+        return new MemoryUsage(rows, entryBytes, dictionaryBytes, indexBytes, synopsisBytes, pageCacheBytes, memoryBudget);
+    }
+
+    private IllegalStateException budgetExceeded(MemoryUsage usage) {
+        return new IllegalStateException("Memory budget of " + memoryBudget + " bytes exceeded, append refused: " + usage);
+    }
+
+    private static List<Segment> getSegments(Snapshot snapshot) {
+        List<Segment> segments = new ArrayList<>();
+        for (Partition partition : snapshot.getPartitions().values()) segments.addAll(partition.getSegments());
+        return segments;
+    }
+
+    /**
+     * Runs the query and returns the plan it used, with estimated and actual rows scanned and matched
+     * Typed query methods use the same planner, for example getIPsForUser plans like "get ip for user = ..."
+     * Throws IllegalArgumentException when the query cannot be parsed
+     */
+    public QueryPlan explain(String query) {
+        QLStatement statement = QLStatement.parse(query);
+        return execute(statement, new QLAggregator(statement));
     }
 
     /**
@@ -73,53 +763,29 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
     @Override
     public Set<String> getUniqueIPs(Date after, Date before) {
         Set<String> IPs = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        for (LogEntry entry : fitEntries) IPs.add(entry.getIp());
+        scan(null, after, before, (entries, row) -> IPs.add(entries.getIp(row)));
         return IPs;
     }
 
     @Override
     public Set<String> getIPsForUser(String user, Date after, Date before) {
         Set<String> IPs = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-
-        for (LogEntry entry : fitEntries) {
-            //Check if entry was submitted by given user
-            if (entry.getUser().equals(user)) IPs.add(entry.getIp());
-        }
+        //Only entries submitted by given user
+        scan(eq(LogField.USER, user), after, before, (entries, row) -> IPs.add(entries.getIp(row)));
         return IPs;
     }
 
     @Override
     public Set<String> getIPsForEvent(Event event, Date after, Date before) {
         Set<String> IPs = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-
-        for (LogEntry entry : fitEntries) {
-            //Check if event type matches given event
-            if (entry.getEvent().equals(event)) IPs.add(entry.getIp());
-        }
+        scan(eq(LogField.EVENT, event), after, before, (entries, row) -> IPs.add(entries.getIp(row)));
         return IPs;
     }
 
     @Override
     public Set<String> getIPsForStatus(Status status, Date after, Date before) {
         Set<String> IPs = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-
-        for (LogEntry entry : fitEntries) {
-            //Check if status matches given status
-            if (entry.getStatus().equals(status)) IPs.add(entry.getIp());
-        }
-        return IPs;
-    }
-
-    private Set<String> getIPsForDate(Date parseDate, Date date1, Date date2) {
-        Set<String> IPs = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getDate().equals(parseDate)) IPs.add(entry.getIp());
-        }
+        scan(eq(LogField.STATUS, status), after, before, (entries, row) -> IPs.add(entries.getIp(row)));
         return IPs;
     }
 
@@ -129,335 +795,194 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<String> getAllUsers() {
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : entries) users.add(entry.getUser());
-        return users;
+        return getUsers(null, null);
     }
 
     @Override
     public int getNumberOfUsers(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
+        return getUsers(after, before).size();
+    }
+
+    public Set<String> getUsers(Date after, Date before) {
         Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) users.add(entry.getUser());
-        return users.size();
+        scan(null, after, before, (entries, row) -> users.add(entries.getUser(row)));
+        return users;
     }
 
     @Override
     public int getNumberOfUserEvents(String user, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
         //We need to count only unique events here
         Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //If user is assigned to given entry, increase the count
-            if (entry.getUser().equals(user)) events.add(entry.getEvent());
-        }
+        scan(eq(LogField.USER, user), after, before, (entries, row) -> events.add(entries.getEvent(row)));
         return events.size();
     }
 
     @Override
     public Set<String> getUsersForIP(String ip, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //If ip of given entry is equal to passed ip, add user to the set
-            if (entry.getIp().equals(ip)) users.add(entry.getUser());
-        }
-        return users;
+        return getUsersFor(eq(LogField.IP, ip), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveLoggedIn(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.LOGIN
-            if (entry.getEvent().equals(Event.LOGIN)) {
-                users.add(entry.getUser());
-            }
-        }
-        return users;
+        return getUsersFor(eq(LogField.EVENT, Event.LOGIN), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveDownloadedPlugin(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.DOWNLOAD_PLUGIN
-            if (entry.getEvent().equals(Event.DOWNLOAD_PLUGIN)) {
-                //Check for Status.OK
-                if (entry.getStatus().equals(Status.OK)) users.add(entry.getUser());
-            }
-        }
-        return users;
+        //Only successful downloads count
+        return getUsersFor(and(eq(LogField.EVENT, Event.DOWNLOAD_PLUGIN), eq(LogField.STATUS, Status.OK)), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveSentMessages(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.SEND_MESSAGE
-            if (entry.getEvent().equals(Event.SEND_MESSAGE)) {
-                //Check for Status.OK
-                if (entry.getStatus().equals(Status.OK)) users.add(entry.getUser());
-            }
-        }
-        return users;
+        return getUsersFor(and(eq(LogField.EVENT, Event.SEND_MESSAGE), eq(LogField.STATUS, Status.OK)), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveAttemptedTasks(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.ATTEMPT_TASK
-            if (entry.getEvent().equals(Event.ATTEMPT_TASK)) {
-                users.add(entry.getUser());
-            }
-        }
-        return users;
+        return getUsersFor(eq(LogField.EVENT, Event.ATTEMPT_TASK), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveAttemptedTasks(Date after, Date before, int task) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.ATTEMPT_TASK
-            if (entry.getEvent().equals(Event.ATTEMPT_TASK)) {
-                //Check for task number
-                if (entry.getTaskNumber() == task) users.add(entry.getUser());
-            }
-        }
-        return users;
+        return getUsersFor(and(eq(LogField.EVENT, Event.ATTEMPT_TASK), eq(LogField.TASK, task)), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveCompletedTasks(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.COMPLETE_TASK
-            if (entry.getEvent().equals(Event.COMPLETE_TASK)) {
-                users.add(entry.getUser());
-            }
-        }
-        return users;
+        return getUsersFor(eq(LogField.EVENT, Event.COMPLETE_TASK), after, before);
     }
 
     @Override
     public Set<String> getUsersWhoHaveCompletedTasks(Date after, Date before, int task) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<String> users = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.COMPLETE_TASK
-            if (entry.getEvent().equals(Event.COMPLETE_TASK)) {
-                //Check for task number
-                if (entry.getTaskNumber() == task) users.add(entry.getUser());
-            }
-        }
-        return users;
-    }
-
-    private Set<String> getUsersForDate(Date parseDate, Date date1, Date date2) {
-        Set<String> users = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getDate().equals(parseDate)) users.add(entry.getUser());
-        }
-        return users;
+        return getUsersFor(and(eq(LogField.EVENT, Event.COMPLETE_TASK), eq(LogField.TASK, task)), after, before);
     }
 
-    private Set<String> getUsersForEvent(Event event, Date date1, Date date2) {
+    private Set<String> getUsersFor(Filter filter, Date after, Date before) {
         Set<String> users = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getEvent().equals(event)) users.add(entry.getUser());
-        }
-        return users;
-    }
-
-    private Set<String> getUsersForStatus(Status valueOf, Date date1, Date date2) {
-        Set<String> users = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getStatus().equals(valueOf)) users.add(entry.getUser());
-        }
+        scan(filter, after, before, (entries, row) -> users.add(entries.getUser(row)));
         return users;
     }
 
     /**
-     * DateQuery methods
+     * DateQuery methods, Date versions convert arguments and results of DateMillisQuery methods
      */
 
     @Override
     public Set<Date> getDatesForUserAndEvent(String user, Event event, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user match
-            if (entry.getUser().equals(user)) {
-                //Check for event match
-                if (entry.getEvent().equals(event)) dates.add(entry.getDate());
-            }
-        }
-        return dates;
+        return toDates(getDatesForUserAndEventMillis(user, event, afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Set<Date> getDatesWhenSomethingFailed(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Status.FAILED
-            if (entry.getStatus().equals(Status.FAILED)) dates.add(entry.getDate());
-        }
-        return dates;
+        return toDates(getDatesWhenSomethingFailedMillis(afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Set<Date> getDatesWhenErrorOccurred(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Status.ERROR
-            if (entry.getStatus().equals(Status.ERROR)) dates.add(entry.getDate());
-        }
-        return dates;
+        return toDates(getDatesWhenErrorOccurredMillis(afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Date getDateWhenUserLoggedInFirstTime(String user, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        //We need to get THE EARLIEST date
-        List<Date> sortedDates = new ArrayList<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) {
-                //Check for Event.LOGIN
-                if (entry.getEvent().equals(Event.LOGIN)) sortedDates.add(entry.getDate());
-            }
-        }
-        if (!sortedDates.isEmpty()) {
-            Collections.sort(sortedDates);
-            return sortedDates.get(0);
-        }
-        return null;
+        return toDate(getDateWhenUserLoggedInFirstTimeMillis(user, afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Date getDateWhenUserAttemptedTask(String user, int task, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        //We need to get THE EARLIEST date
-        List<Date> sortedDates = new ArrayList<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) {
-                //Check for Event.ATTEMPT_TASK
-                if (entry.getEvent().equals(Event.ATTEMPT_TASK)) {
-                    //Check for id
-                    if (entry.getTaskNumber() == task) sortedDates.add(entry.getDate());
-                }
-            }
-        }
-        if (!sortedDates.isEmpty()) {
-            Collections.sort(sortedDates);
-            return sortedDates.get(0);
-        }
-        return null;
+        return toDate(getDateWhenUserAttemptedTaskMillis(user, task, afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Date getDateWhenUserCompletedTask(String user, int task, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        //We need to get THE EARLIEST date
-        List<Date> sortedDates = new ArrayList<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) {
-                //Check for Event.COMPLETE_TASK
-                if (entry.getEvent().equals(Event.COMPLETE_TASK)) {
-                    //Check for id
-                    if (entry.getTaskNumber() == task) sortedDates.add(entry.getDate());
-                }
-            }
-        }
-        if (!sortedDates.isEmpty()) {
-            Collections.sort(sortedDates);
-            return sortedDates.get(0);
-        }
-        return null;
+        return toDate(getDateWhenUserCompletedTaskMillis(user, task, afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Set<Date> getDatesWhenUserSentMessages(String user, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) {
-                //Check for Event.SEND_MESSAGE
-                if (entry.getEvent().equals(Event.SEND_MESSAGE)) dates.add(entry.getDate());
-            }
-        }
-        return dates;
+        return toDates(getDatesWhenUserSentMessagesMillis(user, afterMillis(after), beforeMillis(before)));
     }
 
     @Override
     public Set<Date> getDatesWhenUserDownloadedPlugin(String user, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) {
-                //Check for Event.DOWNLOAD_PLUGIN
-                if (entry.getEvent().equals(Event.DOWNLOAD_PLUGIN)) dates.add(entry.getDate());
-            }
-        }
-        return dates;
+        return toDates(getDatesWhenUserDownloadedPluginMillis(user, afterMillis(after), beforeMillis(before)));
     }
 
     public Set<Date> getAllDates(){
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : entries) dates.add(entry.getDate());
-        return dates;
+        return toDates(getAllDatesMillis());
     }
 
-    private Set<Date> getDatesForStatus(Status valueOf, Date date1, Date date2) {
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        Set<Date> dates = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            if (entry.getStatus().equals(valueOf)) dates.add(entry.getDate());
-        }
-        return dates;
+    /**
+     * DateMillisQuery methods, rows are read field by field so nothing is allocated per row
+     */
+
+    @Override
+    public long[] getDatesForUserAndEventMillis(String user, Event event, long after, long before) {
+        LongCollector dates = new LongCollector();
+        //Event is checked first, it is cheaper than comparing user names
+        scan(and(eq(LogField.EVENT, event), eq(LogField.USER, user)), after, before, (entries, row) -> dates.add(entries.getTime(row)));
+        return dates.toSortedDistinct();
     }
 
-    private Set<Date> getDatesForEvent(Event valueOf, Date date1, Date date2) {
-        Set<Date> dates = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getEvent().equals(valueOf)) dates.add(entry.getDate());
-        }
-        return dates;
+    @Override
+    public long[] getDatesWhenSomethingFailedMillis(long after, long before) {
+        return getDatesForStatusMillis(Status.FAILED, after, before);
     }
 
-    private Set<Date> getDatesForUser(String value1, Date date1, Date date2) {
-        Set<Date> dates = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getUser().equals(value1)) dates.add(entry.getDate());
-        }
-        return dates;
+    @Override
+    public long[] getDatesWhenErrorOccurredMillis(long after, long before) {
+        return getDatesForStatusMillis(Status.ERROR, after, before);
     }
 
-    private Set<Date> getDatesForIP(String value1, Date date1, Date date2) {
-        Set<Date> dates = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getIp().equals(value1)) dates.add(entry.getDate());
-        }
-        return dates;
+    @Override
+    public long getDateWhenUserLoggedInFirstTimeMillis(String user, long after, long before) {
+        return getEarliestMillis(user, Event.LOGIN, -1, after, before);
+    }
+
+    @Override
+    public long getDateWhenUserAttemptedTaskMillis(String user, int task, long after, long before) {
+        return getEarliestMillis(user, Event.ATTEMPT_TASK, task, after, before);
+    }
+
+    @Override
+    public long getDateWhenUserCompletedTaskMillis(String user, int task, long after, long before) {
+        return getEarliestMillis(user, Event.COMPLETE_TASK, task, after, before);
+    }
+
+    @Override
+    public long[] getDatesWhenUserSentMessagesMillis(String user, long after, long before) {
+        return getDatesForUserAndEventMillis(user, Event.SEND_MESSAGE, after, before);
+    }
+
+    @Override
+    public long[] getDatesWhenUserDownloadedPluginMillis(String user, long after, long before) {
+        return getDatesForUserAndEventMillis(user, Event.DOWNLOAD_PLUGIN, after, before);
+    }
+
+    @Override
+    public long[] getAllDatesMillis() {
+        LongCollector dates = new LongCollector();
+        scanRows(Long.MIN_VALUE, Long.MAX_VALUE, (entries, row) -> dates.add(entries.getTime(row)));
+        return dates.toSortedDistinct();
+    }
+
+    private long[] getDatesForStatusMillis(Status status, long after, long before) {
+        LongCollector dates = new LongCollector();
+        scan(eq(LogField.STATUS, status), after, before, (entries, row) -> dates.add(entries.getTime(row)));
+        return dates.toSortedDistinct();
+    }
+
+    private long getEarliestMillis(String user, Event event, int task, long after, long before) {
+        //We need to get THE EARLIEST date, task is checked only for task events
+        long[] earliest = {NO_DATE};
+        Filter filter = LogField.hasTask(event)
+                ? and(eq(LogField.EVENT, event), eq(LogField.USER, user), eq(LogField.TASK, task))
+                : and(eq(LogField.EVENT, event), eq(LogField.USER, user));
+        scan(filter, after, before, (entries, row) -> {
+            long time = entries.getTime(row);
+            if (earliest[0] == NO_DATE || time < earliest[0]) earliest[0] = time;
+        });
+        return earliest[0];
     }
 
     /**
@@ -471,136 +996,62 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     @Override
     public Set<Event> getAllEvents(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) events.add(entry.getEvent());
-        return events;
+        return getEventsFor(null, after, before);
     }
 
     @Override
     public Set<Event> getEventsForIP(String ip, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for IP
-            if (entry.getIp().equals(ip)) events.add(entry.getEvent());
-        }
-        return events;
+        return getEventsFor(eq(LogField.IP, ip), after, before);
     }
 
     @Override
     public Set<Event> getEventsForUser(String user, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for user
-            if (entry.getUser().equals(user)) events.add(entry.getEvent());
-        }
-        return events;
+        return getEventsFor(eq(LogField.USER, user), after, before);
     }
 
     @Override
     public Set<Event> getFailedEvents(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Status.FAILED
-            if (entry.getStatus().equals(Status.FAILED)) events.add(entry.getEvent());
-        }
-        return events;
+        return getEventsFor(eq(LogField.STATUS, Status.FAILED), after, before);
     }
 
     @Override
     public Set<Event> getErrorEvents(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Set<Event> events = new HashSet<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Status.ERROR
-            if (entry.getStatus().equals(Status.ERROR)) events.add(entry.getEvent());
-        }
-        return events;
+        return getEventsFor(eq(LogField.STATUS, Status.ERROR), after, before);
     }
 
     @Override
     public int getNumberOfAttemptsToCompleteTask(int task, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        int count = 0;
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.ATTEMPT_TASK
-            if (entry.getEvent().equals(Event.ATTEMPT_TASK)) {
-                //Check for task id
-                if (entry.getTaskNumber() == task) count++;
-            }
-        }
-        return count;
+        return getTaskCounts(Event.ATTEMPT_TASK, after, before).getOrDefault(task, 0);
     }
 
     @Override
     public int getNumberOfSuccessfulAttemptsToCompleteTask(int task, Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        int count = 0;
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.COMPLETE_TASK
-            if (entry.getEvent().equals(Event.COMPLETE_TASK)) {
-                //Check for task id
-                if (entry.getTaskNumber() == task) count++;
-            }
-        }
-        return count;
+        return getTaskCounts(Event.COMPLETE_TASK, after, before).getOrDefault(task, 0);
     }
 
     @Override
     public Map<Integer, Integer> getAllAttemptedTasksAndNumberOfAttempts(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Map<Integer, Integer> result = new HashMap<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.ATTEMPT_TASK
-            if (entry.getEvent().equals(Event.ATTEMPT_TASK)) {
-                //If map does not contain given ID, get number of attempts and put entry to the map
-                int id = entry.getTaskNumber();
-                if (!result.containsKey(id)) {
-                    int count = getNumberOfAttemptsToCompleteTask(id, after, before);
-                    result.put(id, count);
-                }
-            }
-        }
-        return result;
+        return getTaskCounts(Event.ATTEMPT_TASK, after, before);
     }
 
     @Override
     public Map<Integer, Integer> getAllCompletedTasksAndNumberOfCompletions(Date after, Date before) {
-        List<LogEntry> fitEntries = getEntriesByDate(after, before);
-        Map<Integer, Integer> result = new HashMap<>();
-        for (LogEntry entry : fitEntries) {
-            //Check for Event.COMPLETE_TASK
-            if (entry.getEvent().equals(Event.COMPLETE_TASK)) {
-                //If map does not contain given ID, get number of attempts and put entry to the map
-                int id = entry.getTaskNumber();
-                if (!result.containsKey(id)) {
-                    int count = getNumberOfSuccessfulAttemptsToCompleteTask(id, after, before);
-                    result.put(id, count);
-                }
-            }
-        }
-        return result;
+        return getTaskCounts(Event.COMPLETE_TASK, after, before);
     }
 
-    private Set<Event> getEventsForStatus(Status value1, Date date1, Date date2) {
+    private Set<Event> getEventsFor(Filter filter, Date after, Date before) {
         Set<Event> events = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getStatus().equals(value1)) events.add(entry.getEvent());
-        }
+        scan(filter, after, before, (entries, row) -> events.add(entries.getEvent(row)));
         return events;
     }
 
-    private Set<Event> getEventsForDate(Date parseDate, Date date1, Date date2) {
-        Set<Event> events = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getDate().equals(parseDate)) events.add(entry.getEvent());
-        }
-        return events;
+    /**
+     * Number of entries with given task event per task, counted in one pass
+     */
+    private Map<Integer, Integer> getTaskCounts(Event event, Date after, Date before) {
+        Map<Integer, Integer> result = new HashMap<>();
+        scan(eq(LogField.EVENT, event), after, before, (entries, row) -> result.merge(entries.getTaskNumber(row), 1, Integer::sum));
+        return result;
     }
 
     /**
@@ -609,197 +1060,104 @@ public class LogParser implements IPQuery, UserQuery, DateQuery, EventQuery, QLQ
 
     public Set<Status> getAllStatus(){
         Set<Status> result = new HashSet<>();
-        for (LogEntry entry : entries) result.add(entry.getStatus());
+        scan(null, null, null, (entries, row) -> result.add(entries.getStatus(row)));
         return result;
     }
 
-    private Set<Status> getAllStatusForEvent(Event valueOf, Date date1, Date date2) {
-        Set<Status> result = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getEvent().equals(valueOf)) result.add(entry.getStatus());
-        }
-        return result;
-    }
+    /**
+     * FunnelQuery methods
+     */
 
-    private Set<Status> getAllStatusForDate(Date parseDate, Date date1, Date date2) {
-        Set<Status> result = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getDate().equals(parseDate)) result.add(entry.getStatus());
-        }
-        return result;
+    @Override
+    public TaskFunnel getTaskFunnel(int task, Date after, Date before) {
+        TaskFunnel funnel = getTaskFunnels(task, true, after, before).get(task);
+        return funnel == null ? new TaskFunnel(task, new HashMap<>(), new HashMap<>()) : funnel;
     }
 
-    private Set<Status> getAllStatusForUser(String value1, Date date1, Date date2) {
-        Set<Status> result = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getUser().equals(value1)) result.add(entry.getStatus());
-        }
-        return result;
+    @Override
+    public Map<Integer, TaskFunnel> getTaskFunnels(Date after, Date before) {
+        return getTaskFunnels(0, false, after, before);
     }
 
-    private Set<Status> getAllStatusForIp(String value1, Date date1, Date date2) {
-        Set<Status> result = new HashSet<>();
-        List<LogEntry> fitEntries = getEntriesByDate(date1, date2);
-        for (LogEntry entry : fitEntries) {
-            if (entry.getIp().equals(value1)) result.add(entry.getStatus());
-        }
-        return result;
+    private Map<Integer, TaskFunnel> getTaskFunnels(int task, boolean singleTask, Date after, Date before) {
+        //Attempts and completions are joined on (user, task) while scanning, no per user lookups afterwards
+        FunnelTable table = new FunnelTable();
+        //Only task events have a task number, so task = N also selects attempts and completions
+        Filter filter = singleTask ? eq(LogField.TASK, task) : Filter.or(Arrays.asList(eq(LogField.EVENT, Event.ATTEMPT_TASK), eq(LogField.EVENT, Event.COMPLETE_TASK)));
+        scan(filter, after, before, (entries, row) ->
+                table.add(entries.getUser(row), entries.getTaskNumber(row), entries.getTime(row), entries.getEvent(row) == Event.COMPLETE_TASK));
+        return table.toFunnels();
     }
 
     /**
      * QLQuery method
      */
 
+    /**
+     * Runs a query in QLStatement format, queries which cannot be parsed give empty result
+     */
     @Override
     public Set<Object> execute(String query) {
-        Set<Object> result = new HashSet<>();
-        String[] queryArr = query.split(" ", 6);
-
-        if (queryArr.length < 6){
-            /**
-             * Default query
-             */
-            switch (query) {
-                case "get ip":
-                    result.addAll(getUniqueIPs(null, null));
-                    break;
-                case "get user":
-                    result.addAll(getAllUsers());
-                    break;
-                case "get date":
-                    result.addAll(getAllDates());
-                    break;
-                case "get event":
-                    result.addAll(getAllEvents(null, null));
-                    break;
-                case "get status":
-                    result.addAll(getAllStatus());
-                    break;
-                default:
-                    break;
-            }
-            return result;
-        }
-        String field1 = queryArr[1];
-        String field2 = queryArr[3];
-        String value1 = queryArr[5].replaceAll("\"","");
-        Date date1 = null;
-        Date date2 = null;
-
-        /**
-         * Here's the general format for a query:
-         * get field1 for field2 = "value1" and date between "after" and "before"
-         */
-
-        if (value1.contains("and date")) {
-            String parse = value1;
-            value1 = parse.substring(0, parse.indexOf(" and")).replaceAll("\"","");
-            //Some hard stuff with parsing whole query - we end up with array with first two elements date/time1 and last two elements date/time2
-            String[] dates = parse.substring(parse.indexOf("between "))
-                    .replace("between ", "")
-                    .replaceAll("\"","")
-                    .split(" ");
-            date1 = parseDate(dates[0] + " " + dates[1]);
-            date2 = parseDate(dates[3] + " " + dates[4]);
-        }
-
-        switch (field1) {
-            case "ip":
-                switch (field2) {
-                    case "user":
-                        result.addAll(getIPsForUser(value1, date1, date2));
-                        break;
-                    case "event":
-                        result.addAll(getIPsForEvent(Event.valueOf(value1), date1, date2));
-                        break;
-                    case "date":
-                        result.addAll(getIPsForDate(parseDate(value1), date1, date2));
-                        break;
-                    case "status":
-                        result.addAll(getIPsForStatus(Status.valueOf(value1), date1, date2));
-                        break;
-                }
-                break;
-            case "user":
-                switch (field2) {
-                    case "ip":
-                        result.addAll(getUsersForIP(value1, date1, date2));
-                        break;
-                    case "date":
-                        result.addAll(getUsersForDate(parseDate(value1), date1, date2));
-                        break;
-                    case "event":
-                        result.addAll(getUsersForEvent(Event.valueOf(value1), date1, date2));
-                        break;
-                    case "status":
-                        result.addAll(getUsersForStatus(Status.valueOf(value1), date1, date2));
-                        break;
-                }
-                break;
-            case "date":
-                switch (field2) {
-                    case "ip":
-                        result.addAll(getDatesForIP(value1, date1, date2));
-                        break;
-                    case "user":
-                        result.addAll(getDatesForUser(value1, date1, date2));
-                        break;
-                    case "event":
-                        result.addAll(getDatesForEvent(Event.valueOf(value1), date1, date2));
-                        break;
-                    case "status":
-                        result.addAll(getDatesForStatus(Status.valueOf(value1), date1, date2));
-                        break;
-                }
-                break;
-            case "event":
-                switch (field2) {
-                    case "ip":
-                        result.addAll(getEventsForIP(value1, date1, date2));
-                        break;
-                    case "user":
-                        result.addAll(getEventsForUser(value1, date1, date2));
-                        break;
-                    case "date":
-                        result.addAll(getEventsForDate(parseDate(value1), date1, date2));
-                        break;
-                    case "status":
-                        result.addAll(getEventsForStatus(Status.valueOf(value1), date1, date2));
-                        break;
-                }
-                break;
-            case "status":
-                switch (field2) {
-                    case "ip":
-                        result.addAll(getAllStatusForIp(value1, date1, date2));
-                        break;
-                    case "user":
-                        result.addAll(getAllStatusForUser(value1, date1, date2));
-                        break;
-                    case "date":
-                        result.addAll(getAllStatusForDate(parseDate(value1), date1, date2));
-                        break;
-                    case "event":
-                        result.addAll(getAllStatusForEvent(Event.valueOf(value1), date1, date2));
-                        break;
-                }
-                break;
+        QLStatement statement;
+        try {
+            statement = QLStatement.parse(query);
+        } catch (IllegalArgumentException e) {
+            return new HashSet<>();
         }
-        return result;
+        return execute(statement);
+    }
+
+    public Set<Object> execute(QLStatement statement) {
+        QLAggregator aggregator = new QLAggregator(statement);
+        execute(statement, aggregator);
+        return aggregator.getResult();
     }
 
     /**
-     * Util methods
+     * Distinct values of the field per group of a "count(distinct field) ... group by" query,
+     * partial results which can be joined before counting, what DistributedLogParser needs from workers
      */
-    private Date parseDate(String dateString) {
-        SimpleDateFormat sdf = new SimpleDateFormat("dd.MM.yyyy HH:mm:ss");
-        try {
-            return sdf.parse(dateString);
-        } catch (ParseException e) {
-            return null;
+    public Map<Object, Set<Object>> getValuesByGroup(String query) {
+        QLStatement statement = QLStatement.parse(query);
+        if (statement.getAggregate() != QLStatement.Aggregate.COUNT_DISTINCT || statement.getGroupBy() == null) {
+            throw new IllegalArgumentException("Not a count distinct query with group by: " + query);
         }
+        QLAggregator aggregator = new QLAggregator(statement);
+        execute(statement, aggregator);
+        return aggregator.getValuesByGroup();
+    }
+
+    private QueryPlan execute(QLStatement statement, QLAggregator aggregator) {
+        //Date range selects segments, filter runs on row fields, the aggregator reads only the fields it projects or groups by
+        return scan(statement.getFilter(), statement.getAfter(), statement.getBefore(), aggregator::add);
+    }
+
+    /**
+     * Util methods
+     */
+    private static Filter eq(LogField field, Object value) {
+        return Filter.eq(field, value);
+    }
+
+    private static Filter and(Filter... filters) {
+        return Filter.and(Arrays.asList(filters));
+    }
+
+    private static long afterMillis(Date after) {
+        return after == null ? Long.MIN_VALUE : after.getTime();
+    }
+
+    private static long beforeMillis(Date before) {
+        return before == null ? Long.MAX_VALUE : before.getTime();
+    }
+
+    private static Date toDate(long millis) {
+        return millis == NO_DATE ? null : new Date(millis);
+    }
+
+    private static Set<Date> toDates(long[] millis) {
+        Set<Date> dates = new HashSet<>();
+        for (long time : millis) dates.add(new Date(time));
+        return dates;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,128 @@
+package main;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Answers one QL query straight from the log files, without building a LogParser
+ * Files are streamed in parallel, each into its own QLAggregator, and the aggregators are merged at the end
+ * Lines are decoded lazily: date and event are read first and lines outside the date range or with an event
+ * the filter can never match are dropped before user, ip, task or status are looked at
+ */
+public class LogScanner {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final QLStatement statement;
+    private final long after;
+    private final long before;
+    //Events a matching line can have, taken from the filter
+    private final Set<Event> events;
+
+    public LogScanner(QLStatement statement) {
+        this.statement = statement;
+        after = statement.getAfter() == null ? Long.MIN_VALUE : statement.getAfter().getTime();
+        before = statement.getBefore() == null ? Long.MAX_VALUE : statement.getBefore().getTime();
+        events = possibleEvents(statement.getFilter());
+    }
+
+    /**
+     * Runs the query over .log files of given file or directory, queries which cannot be parsed give IllegalArgumentException
+     * A missing directory or a file that cannot be read gives UncheckedIOException, partial answers are never returned
+     */
+    public static Set<Object> execute(Path logDir, String query) {
+        return new LogScanner(QLStatement.parse(query)).execute(logDir);
+    }
+
+    public Set<Object> execute(Path logDir) {
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(logDir)) {
+            files = paths.filter(path -> path.toString().endsWith(".log") && Files.isRegularFile(path)).collect(Collectors.toList());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        QLAggregator result = files.parallelStream()
+                .map(this::scan)
+                .reduce((a, b) -> {
+                    a.merge(b);
+                    return a;
+                })
+                .orElseGet(() -> new QLAggregator(statement));
+        return result.getResult();
+    }
+
+    private QLAggregator scan(Path file) {
+        QLAggregator aggregator = new QLAggregator(statement);
+        //Lines are cut out of the byte stream directly, no String is made for lines that get dropped
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            //Part of a line left at the end of the previous read
+            byte[] carry = new byte[0];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    if (buffer[i] != '\n') continue;
+                    if (carry.length == 0) accept(Arrays.copyOfRange(buffer, start, i), aggregator);
+                    else {
+                        accept(concat(carry, buffer, start, i), aggregator);
+                        carry = new byte[0];
+                    }
+                    start = i + 1;
+                }
+                carry = concat(carry, buffer, start, read);
+            }
+            accept(carry, aggregator);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return aggregator;
+    }
+
+    private static byte[] concat(byte[] head, byte[] buffer, int from, int to) {
+        byte[] line = Arrays.copyOf(head, head.length + to - from);
+        System.arraycopy(buffer, from, line, head.length, to - from);
+        return line;
+    }
+
+    private void accept(byte[] line, QLAggregator aggregator) {
+        if (line.length > 0 && line[line.length - 1] == '\r') line = Arrays.copyOf(line, line.length - 1);
+        if (line.length == 0) return;
+        LogEntry entry = new LogEntry(line);
+        long time = entry.getTime();
+        if (time < after || time > before || !events.contains(entry.getEvent())) return;
+        Filter filter = statement.getFilter();
+        if (filter == null || filter.matches(entry)) aggregator.add(entry);
+    }
+
+    /**
+     * Events of lines which can match the filter: event and task conditions narrow them, other conditions keep all
+     */
+    private static Set<Event> possibleEvents(Filter filter) {
+        if (filter instanceof Filter.Eq) {
+            Filter.Eq eq = (Filter.Eq) filter;
+            if (eq.getValue() == null) return EnumSet.noneOf(Event.class);
+            if (eq.getField() == LogField.EVENT) return EnumSet.of((Event) eq.getValue());
+            if (eq.getField() == LogField.TASK) return EnumSet.of(Event.ATTEMPT_TASK, Event.COMPLETE_TASK);
+        }
+        if (filter instanceof Filter.And) {
+            Set<Event> events = EnumSet.allOf(Event.class);
+            for (Filter part : ((Filter.And) filter).getFilters()) events.retainAll(possibleEvents(part));
+            return events;
+        }
+        if (filter instanceof Filter.Or) {
+            Set<Event> events = EnumSet.noneOf(Event.class);
+            for (Filter part : ((Filter.Or) filter).getFilters()) events.addAll(possibleEvents(part));
+            return events;
+        }
+        return EnumSet.allOf(Event.class);
+    }
+}
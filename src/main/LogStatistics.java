@@ -0,0 +1,79 @@
+package main;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Column statistics of everything LogParser holds, merged from statistics of its segments
+ * Distinct counts are estimates, frequencies are exact, rows per partition form the time histogram
+ */
+public class LogStatistics {
+    private final long rows;
+    private final long distinctUsers;
+    private final long distinctIps;
+    private final Map<Event, Integer> eventCounts = new EnumMap<>(Event.class);
+    private final Map<Status, Integer> statusCounts = new EnumMap<>(Status.class);
+    private final NavigableMap<Integer, Integer> taskCounts = new TreeMap<>();
+    private final NavigableMap<Long, Integer> rowsPerPartition = new TreeMap<>();
+
+    LogStatistics(Iterable<Partition> partitions) {
+        long count = 0;
+        HyperLogLog users = new HyperLogLog();
+        HyperLogLog ips = new HyperLogLog();
+        for (Partition partition : partitions) {
+            rowsPerPartition.put(partition.getStart(), partition.size());
+            for (Segment segment : partition.getSegments()) {
+                SegmentStatistics statistics = segment.getStatistics();
+                count += statistics.getRows();
+                users.merge(statistics.getUsers());
+                ips.merge(statistics.getIps());
+                for (Event event : Event.values()) eventCounts.merge(event, statistics.getEventCount(event), Integer::sum);
+                for (Status status : Status.values()) statusCounts.merge(status, statistics.getStatusCount(status), Integer::sum);
+                statistics.getTaskCounts().forEach((task, tasks) -> taskCounts.merge(task, tasks, Integer::sum));
+            }
+        }
+        rows = count;
+        distinctUsers = count == 0 ? 0 : users.estimate();
+        distinctIps = count == 0 ? 0 : ips.estimate();
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    public long getDistinctUsers() {
+        return distinctUsers;
+    }
+
+    public long getDistinctIps() {
+        return distinctIps;
+    }
+
+    public Map<Event, Integer> getEventCounts() {
+        return Collections.unmodifiableMap(eventCounts);
+    }
+
+    public Map<Status, Integer> getStatusCounts() {
+        return Collections.unmodifiableMap(statusCounts);
+    }
+
+    public NavigableMap<Integer, Integer> getTaskCounts() {
+        return Collections.unmodifiableNavigableMap(taskCounts);
+    }
+
+    /**
+     * Rows per partition keyed by partition start in epoch millis
+     */
+    public NavigableMap<Long, Integer> getRowsPerPartition() {
+        return Collections.unmodifiableNavigableMap(rowsPerPartition);
+    }
+
+    @Override
+    public String toString() {
+        return "rows " + rows + ", distinct users ~" + distinctUsers + ", distinct ips ~" + distinctIps
+                + ", partitions " + rowsPerPartition.size() + "\nevents " + eventCounts + "\nstatus " + statusCounts + "\ntasks " + taskCounts;
+    }
+}
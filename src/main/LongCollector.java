@@ -0,0 +1,32 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Growable buffer of primitive longs, used to collect timestamps without boxing them
+ */
+class LongCollector {
+    private long[] values = new long[64];
+    private int size;
+
+    public void add(long value) {
+        if (size == values.length) values = Arrays.copyOf(values, size * 2);
+        values[size++] = value;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sorts collected values in place and returns distinct ones
+     */
+    public long[] toSortedDistinct() {
+        Arrays.sort(values, 0, size);
+        int distinct = 0;
+        for (int i = 0; i < size; i++) {
+            if (distinct == 0 || values[i] != values[distinct - 1]) values[distinct++] = values[i];
+        }
+        return Arrays.copyOf(values, distinct);
+    }
+}
@@ -0,0 +1,120 @@
+package main;
+
+/**
+ * Estimated memory held by a LogParser, split by structure
+ * Sizes assume a 64-bit JVM with compressed references: 12 byte object headers, 4 byte references, 8 byte alignment
+ * Strings shared between structures (a dictionary value used as index key) are counted once, where they are owned
+ */
+public class MemoryUsage {
+    static final int REFERENCE = 4;
+    static final int OBJECT_HEADER = 12;
+    static final int ARRAY_HEADER = 16;
+    //HashMap and ConcurrentHashMap node: header, hash, key, value and next
+    static final int MAP_ENTRY = 32;
+    static final int BOXED = 16;
+    static final int DATE = 24;
+
+    private final long rows;
+    private final long entryBytes;
+    private final long dictionaryBytes;
+    private final long indexBytes;
+    private final long synopsisBytes;
+    private final long pageCacheBytes;
+    private final long budget;
+
+    MemoryUsage(long rows, long entryBytes, long dictionaryBytes, long indexBytes, long synopsisBytes, long pageCacheBytes, long budget) {
+        this.rows = rows;
+        this.entryBytes = entryBytes;
+        this.dictionaryBytes = dictionaryBytes;
+        this.indexBytes = indexBytes;
+        this.synopsisBytes = synopsisBytes;
+        this.pageCacheBytes = pageCacheBytes;
+        this.budget = budget;
+    }
+
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Rows themselves: LogEntry objects in EAGER and LAZY modes, columns in COLUMNAR, direct buffers in OFF_HEAP
+     * LAZY entries count with every field decoded, which is as large as queries can make them
+     * DISK rows live in files, only their pages in the page cache take memory
+     */
+    public long getEntryBytes() {
+        return entryBytes;
+    }
+
+    /**
+     * Ip and user dictionaries shared by COLUMNAR, OFF_HEAP and DISK segments
+     */
+    public long getDictionaryBytes() {
+        return dictionaryBytes;
+    }
+
+    /**
+     * Postings indexes built by queries so far, dropped first when the budget is exceeded
+     */
+    public long getIndexBytes() {
+        return indexBytes;
+    }
+
+    /**
+     * Column statistics and zone maps of all segments
+     */
+    public long getSynopsisBytes() {
+        return synopsisBytes;
+    }
+
+    /**
+     * Pages of DISK data files currently cached
+     */
+    public long getPageCacheBytes() {
+        return pageCacheBytes;
+    }
+
+    /**
+     * Indexes and cached pages, memory that can be given back without losing data
+     */
+    public long getCacheBytes() {
+        return indexBytes + pageCacheBytes;
+    }
+
+    public long getTotalBytes() {
+        return entryBytes + dictionaryBytes + indexBytes + synopsisBytes + pageCacheBytes;
+    }
+
+    public double getBytesPerRow() {
+        return rows == 0 ? 0 : (double) getTotalBytes() / rows;
+    }
+
+    /**
+     * Configured memory budget, Long.MAX_VALUE when there is none
+     */
+    public long getBudget() {
+        return budget;
+    }
+
+    @Override
+    public String toString() {
+        return "rows " + rows + ", total " + getTotalBytes() + " bytes (" + Math.round(getBytesPerRow()) + " per row)"
+                + (budget == Long.MAX_VALUE ? "" : " of budget " + budget)
+                + "\nentries " + entryBytes + ", dictionaries " + dictionaryBytes + ", indexes " + indexBytes
+                + ", statistics and zone maps " + synopsisBytes + ", page cache " + pageCacheBytes;
+    }
+
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    static long arrayBytes(long length, int elementBytes) {
+        return align(ARRAY_HEADER + length * elementBytes);
+    }
+
+    /**
+     * String with compact (one byte per char) storage, which is what log files with ascii names give
+     */
+    static long stringBytes(String value) {
+        return value == null ? 0 : align(OBJECT_HEADER + 12) + arrayBytes(value.length(), 1);
+    }
+}
@@ -0,0 +1,168 @@
+package main;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps entries outside of the Java heap as fixed-width EntryRecords in direct ByteBuffers
+ * Strings are replaced by ids from dictionaries, so the heap only holds dictionaries and chunk references
+ */
+class OffHeapEntryStore implements AppendableEntryStore {
+    private static final int CHUNK_RECORDS = 1 << 16;
+    private static final int INITIAL_CHUNK_RECORDS = 1 << 8;
+
+    private final StringDictionary ips;
+    private final StringDictionary users;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private int size;
+    private boolean closed;
+
+    public OffHeapEntryStore(StringDictionary ips, StringDictionary users) {
+        this.ips = ips;
+        this.users = users;
+    }
+
+    @Override
+    public void add(LogEntry entry) {
+        checkOpen();
+        //Start a new chunk when the last one is full, small stores (like short partitions) start with a small chunk
+        if (size % CHUNK_RECORDS == 0) chunks.add(ByteBuffer.allocateDirect(INITIAL_CHUNK_RECORDS * EntryRecord.SIZE));
+        int offset = (size % CHUNK_RECORDS) * EntryRecord.SIZE;
+        ByteBuffer chunk = chunks.get(chunks.size() - 1);
+        if (offset + EntryRecord.SIZE > chunk.capacity()) chunk = resizeLastChunk(Math.min(chunk.capacity() * 2, CHUNK_RECORDS * EntryRecord.SIZE));
+        EntryRecord.write(chunk, offset, entry, ips, users);
+        size++;
+    }
+
+    private ByteBuffer resizeLastChunk(int capacity) {
+        //Only the last chunk may be smaller than CHUNK_RECORDS, so row / CHUNK_RECORDS still finds the right chunk
+        ByteBuffer chunk = chunks.get(chunks.size() - 1);
+        ByteBuffer resized = ByteBuffer.allocateDirect(capacity);
+        ByteBuffer source = chunk.duplicate();
+        source.clear().limit(Math.min(capacity, chunk.capacity()));
+        resized.put(source);
+        chunks.set(chunks.size() - 1, resized);
+        DirectMemory.free(chunk);
+        return resized;
+    }
+
+    @Override
+    public void trimToSize() {
+        checkOpen();
+        int used = (size - (chunks.size() - 1) * CHUNK_RECORDS) * EntryRecord.SIZE;
+        if (!chunks.isEmpty() && used < chunks.get(chunks.size() - 1).capacity()) resizeLastChunk(used);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public LogEntry get(int row) {
+        checkOpen();
+        return EntryRecord.read(chunk(row), offset(row), ips, users);
+    }
+
+    @Override
+    public long getTime(int row) {
+        checkOpen();
+        return EntryRecord.getTime(chunk(row), offset(row));
+    }
+
+    @Override
+    public String getIp(int row) {
+        checkOpen();
+        return EntryRecord.getIp(chunk(row), offset(row), ips);
+    }
+
+    @Override
+    public String getUser(int row) {
+        checkOpen();
+        return EntryRecord.getUser(chunk(row), offset(row), users);
+    }
+
+    @Override
+    public int getTaskNumber(int row) {
+        checkOpen();
+        return EntryRecord.getTaskNumber(chunk(row), offset(row));
+    }
+
+    @Override
+    public Event getEvent(int row) {
+        checkOpen();
+        return EntryRecord.getEvent(chunk(row), offset(row));
+    }
+
+    @Override
+    public Status getStatus(int row) {
+        checkOpen();
+        return EntryRecord.getStatus(chunk(row), offset(row));
+    }
+
+    /**
+     * Direct buffer capacity, memory outside the Java heap
+     */
+    @Override
+    public long getEstimatedBytes() {
+        long bytes = MemoryUsage.arrayBytes(chunks.size(), MemoryUsage.REFERENCE);
+        for (ByteBuffer chunk : chunks) bytes += chunk.capacity();
+        return bytes;
+    }
+
+    private ByteBuffer chunk(int row) {
+        return chunks.get(row / CHUNK_RECORDS);
+    }
+
+    private static int offset(int row) {
+        return (row % CHUNK_RECORDS) * EntryRecord.SIZE;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        for (ByteBuffer chunk : chunks) DirectMemory.free(chunk);
+        chunks.clear();
+        size = 0;
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Off-heap entry store is closed");
+    }
+
+    /**
+     * Frees direct buffers right away instead of waiting for the garbage collector to find them
+     */
+    private static class DirectMemory {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static {
+            Object unsafe = null;
+            Method invokeCleaner = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException ignored) {
+                //Without Unsafe buffers are released once they are garbage collected
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = invokeCleaner;
+        }
+
+        static void free(ByteBuffer buffer) {
+            if (INVOKE_CLEANER == null) return;
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package main;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Bounded cache of pages read from disk store files, pages not read since the clock hand last passed are dropped first
+ * Cached pages are kept by their DataFile under the page number, so a hit is an array read without locking
+ * Misses read the page before taking the lock, only the choice of the page to drop is synchronized
+ * Pages are shared by all queries and never changed after they are read, so readers use them without locking
+ */
+class PageCache {
+    static final int PAGE_RECORDS = 1 << 12;
+    static final int PAGE_BYTES = PAGE_RECORDS * EntryRecord.SIZE;
+    //ByteBuffer wrapping the page and its clock slot
+    private static final int PAGE_OVERHEAD = 48 + 8;
+
+    private final int capacity;
+    //Clock slot i holds page slotPages[i] of slotFiles[i], the first used slots are filled
+    private final DiskEntryStore.DataFile[] slotFiles;
+    private final int[] slotPages;
+    private int used;
+    private int hand;
+
+    public PageCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Page cache needs at least one page: " + capacity);
+        this.capacity = capacity;
+        slotFiles = new DiskEntryStore.DataFile[capacity];
+        slotPages = new int[capacity];
+    }
+
+    /**
+     * Returns page with given number, reading it from the file when it is not cached
+     */
+    public ByteBuffer get(DiskEntryStore.DataFile file, int page) {
+        ByteBuffer buffer = file.getCachedPage(page);
+        if (buffer != null) return buffer;
+        try {
+            buffer = file.readPage(page);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        synchronized (this) {
+            //Other query may have read the same page meanwhile, its copy is the cached one
+            ByteBuffer cached = file.getCachedPage(page);
+            if (cached != null) return cached;
+            int slot = used < capacity ? used++ : evictNext();
+            slotFiles[slot] = file;
+            slotPages[slot] = page;
+            file.setCachedPage(page, buffer);
+        }
+        return buffer;
+    }
+
+    private int evictNext() {
+        //Pages read since the hand last passed get a second chance, so the loop ends within one round
+        while (slotFiles[hand].clearReferenced(slotPages[hand])) hand = (hand + 1) % capacity;
+        int slot = hand;
+        slotFiles[slot].setCachedPage(slotPages[slot], null);
+        hand = (hand + 1) % capacity;
+        return slot;
+    }
+
+    /**
+     * Drops every cached page of the file, called when the file is deleted
+     */
+    public synchronized void evict(DiskEntryStore.DataFile file) {
+        for (int slot = used - 1; slot >= 0; slot--) {
+            if (slotFiles[slot] != file) continue;
+            file.setCachedPage(slotPages[slot], null);
+            //Last used slot fills the gap
+            used--;
+            slotFiles[slot] = slotFiles[used];
+            slotPages[slot] = slotPages[used];
+            slotFiles[used] = null;
+        }
+        if (hand >= used) hand = 0;
+    }
+
+    /**
+     * Drops every cached page, pages are read again from their files when needed
+     */
+    public synchronized void clear() {
+        for (int slot = 0; slot < used; slot++) {
+            slotFiles[slot].setCachedPage(slotPages[slot], null);
+            slotFiles[slot] = null;
+        }
+        used = 0;
+        hand = 0;
+    }
+
+    public synchronized long getEstimatedBytes() {
+        return used * (MemoryUsage.arrayBytes(PAGE_BYTES, 1) + PAGE_OVERHEAD);
+    }
+}
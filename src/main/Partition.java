@@ -0,0 +1,54 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Segments from one time bucket of LogParser (a day by default) with the bucket's min and max timestamps
+ * Date-bounded scans skip partitions whose min/max range does not overlap the query range
+ * Partitions are immutable, appending segments creates a new partition
+ */
+class Partition {
+    private final long start;
+    private final List<Segment> segments;
+    private final long minTime;
+    private final long maxTime;
+    private final int size;
+
+    public Partition(long start, List<Segment> segments) {
+        this.start = start;
+        this.segments = Collections.unmodifiableList(new ArrayList<>(segments));
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        int count = 0;
+        for (Segment segment : segments) {
+            min = Math.min(min, segment.getMinTime());
+            max = Math.max(max, segment.getMaxTime());
+            count += segment.size();
+        }
+        minTime = min;
+        maxTime = max;
+        size = count;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<Segment> getSegments() {
+        return segments;
+    }
+}
@@ -0,0 +1,109 @@
+package main;
+
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects result of a QLStatement from matching entries, so only the final (small) result leaves the engine
+ * Result shapes:
+ * plain projection - set of distinct field values
+ * count / count distinct - set with one Integer
+ * group by - set of Map.Entry from group value to Integer count
+ */
+class QLAggregator {
+    private final QLStatement statement;
+    private final LogField field;
+    private final LogField groupBy;
+    private final boolean distinct;
+    //Plain counts of fields every row has (all but task) need no field value at all
+    private final boolean readsValue;
+    private int count;
+    //Event and status values fit into a bit mask, no set needed to count them distinctly
+    private int distinctMask;
+    private final Set<Object> values = new HashSet<>();
+    private final Map<Object, int[]> groupCounts = new HashMap<>();
+    private final Map<Object, Set<Object>> groupValues = new HashMap<>();
+
+    public QLAggregator(QLStatement statement) {
+        this.statement = statement;
+        field = statement.getField();
+        groupBy = statement.getGroupBy();
+        distinct = statement.getAggregate() == QLStatement.Aggregate.COUNT_DISTINCT;
+        readsValue = field != null && (statement.getAggregate() != QLStatement.Aggregate.COUNT || field == LogField.TASK);
+    }
+
+    public QLStatement getStatement() {
+        return statement;
+    }
+
+    /**
+     * Adds entry which passed date range and filter of the statement
+     */
+    public void add(LogEntry entry) {
+        Object value = readsValue ? field.valueOf(entry) : null;
+        //Rows without the counted field (task of a LOGIN) are not counted
+        if (readsValue && value == null) return;
+        add(value, groupBy == null ? null : groupBy.valueOf(entry));
+    }
+
+    /**
+     * Same as add(LogEntry) for a row of the store, only the projected and grouping fields are read
+     */
+    void add(EntryStore entries, int row) {
+        Object value = readsValue ? field.valueOf(entries, row) : null;
+        if (readsValue && value == null) return;
+        add(value, groupBy == null ? null : groupBy.valueOf(entries, row));
+    }
+
+    private void add(Object value, Object group) {
+        if (groupBy != null) {
+            if (group == null) return;
+            if (distinct) groupValues.computeIfAbsent(group, k -> new HashSet<>()).add(value);
+            else groupCounts.computeIfAbsent(group, k -> new int[1])[0]++;
+        }
+        else if (statement.getAggregate() == QLStatement.Aggregate.COUNT) count++;
+        else if (distinct && value instanceof Enum) distinctMask |= 1 << ((Enum<?>) value).ordinal();
+        else values.add(value);
+    }
+
+    /**
+     * Adds everything collected by other aggregator of the same statement
+     */
+    public void merge(QLAggregator other) {
+        count += other.count;
+        distinctMask |= other.distinctMask;
+        values.addAll(other.values);
+        for (Map.Entry<Object, int[]> group : other.groupCounts.entrySet()) {
+            groupCounts.computeIfAbsent(group.getKey(), k -> new int[1])[0] += group.getValue()[0];
+        }
+        for (Map.Entry<Object, Set<Object>> group : other.groupValues.entrySet()) {
+            groupValues.computeIfAbsent(group.getKey(), k -> new HashSet<>()).addAll(group.getValue());
+        }
+    }
+
+    /**
+     * Distinct values collected per group by count distinct with group by, before they are counted
+     */
+    public Map<Object, Set<Object>> getValuesByGroup() {
+        return new HashMap<>(groupValues);
+    }
+
+    public Set<Object> getResult() {
+        Set<Object> result = new HashSet<>();
+        if (groupBy != null) {
+            for (Map.Entry<Object, int[]> group : groupCounts.entrySet()) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(group.getKey(), group.getValue()[0]));
+            }
+            for (Map.Entry<Object, Set<Object>> group : groupValues.entrySet()) {
+                result.add(new AbstractMap.SimpleImmutableEntry<>(group.getKey(), group.getValue().size()));
+            }
+        }
+        else if (statement.getAggregate() == QLStatement.Aggregate.COUNT) result.add(count);
+        else if (distinct) result.add(Integer.bitCount(distinctMask) + values.size());
+        else result.addAll(values);
+        return result;
+    }
+}
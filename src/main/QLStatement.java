@@ -0,0 +1,239 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Parsed QL query
+ *
+ * Here's the general format for a query:
+ * get projection [for condition] [group by field]
+ * projection is a field (ip, user, date, event, status, task), count, count(*), count(field), count distinct field or count(distinct field)
+ * condition is field = "value" or date between "after" and "before", combined with and / or and grouped with parentheses
+ * Keywords are case insensitive, and binds stronger than or
+ *
+ * Date ranges which apply to the whole condition are taken out of it (after / before), so scans can skip data outside them
+ */
+public class QLStatement {
+    public enum Aggregate {
+        NONE,
+        COUNT,
+        COUNT_DISTINCT
+    }
+
+    private final LogField field;
+    private final Aggregate aggregate;
+    private final Filter filter;
+    private final Date after;
+    private final Date before;
+    private final LogField groupBy;
+
+    private QLStatement(LogField field, Aggregate aggregate, Filter filter, Date after, Date before, LogField groupBy) {
+        this.field = field;
+        this.aggregate = aggregate;
+        this.filter = filter;
+        this.after = after;
+        this.before = before;
+        this.groupBy = groupBy;
+    }
+
+    /**
+     * Projected field, null for count(*)
+     */
+    public LogField getField() {
+        return field;
+    }
+
+    public Aggregate getAggregate() {
+        return aggregate;
+    }
+
+    /**
+     * Remaining row condition, null when every row in date range matches
+     */
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public Date getAfter() {
+        return after;
+    }
+
+    public Date getBefore() {
+        return before;
+    }
+
+    public LogField getGroupBy() {
+        return groupBy;
+    }
+
+    /**
+     * Same rows, but projecting plain values of the field instead of aggregating them
+     */
+    public QLStatement withoutAggregate() {
+        if (field == null) throw new IllegalStateException("count(*) has no field to project");
+        return new QLStatement(field, Aggregate.NONE, filter, after, before, null);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("get ");
+        String name = field == null ? "*" : field.name().toLowerCase();
+        if (aggregate == Aggregate.NONE) sb.append(name);
+        else if (aggregate == Aggregate.COUNT) sb.append("count(").append(name).append(")");
+        else sb.append("count(distinct ").append(name).append(")");
+
+        List<String> conditions = new ArrayList<>();
+        if (filter != null) conditions.add(filter.toString());
+        if (after != null || before != null) conditions.add(Filter.between(after, before).toString());
+        if (!conditions.isEmpty()) sb.append(" for ").append(String.join(" and ", conditions));
+        if (groupBy != null) sb.append(" group by ").append(groupBy.name().toLowerCase());
+        return sb.toString();
+    }
+
+    /**
+     * Parses the query, throws IllegalArgumentException when it does not follow the format
+     */
+    public static QLStatement parse(String query) {
+        return new Parser(query).parseQuery();
+    }
+
+    private static class Parser {
+        //Quoted values keep their leading quote, so they are never taken for keywords
+        private final List<String> tokens = new ArrayList<>();
+        private int pos;
+
+        Parser(String query) {
+            int i = 0;
+            while (i < query.length()) {
+                char c = query.charAt(i);
+                if (Character.isWhitespace(c)) i++;
+                else if (c == '"') {
+                    int end = query.indexOf('"', i + 1);
+                    if (end < 0) throw new IllegalArgumentException("Unclosed quote in query: " + query);
+                    tokens.add(query.substring(i, end));
+                    i = end + 1;
+                }
+                else if (c == '(' || c == ')' || c == '=' || c == '*') {
+                    tokens.add(String.valueOf(c));
+                    i++;
+                }
+                else {
+                    int start = i;
+                    while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && "()=*\"".indexOf(query.charAt(i)) < 0) i++;
+                    tokens.add(query.substring(start, i));
+                }
+            }
+        }
+
+        QLStatement parseQuery() {
+            expect("get");
+            LogField field = null;
+            Aggregate aggregate = Aggregate.NONE;
+            if (accept("count")) {
+                aggregate = Aggregate.COUNT;
+                boolean parenthesis = accept("(");
+                if (accept("distinct")) aggregate = Aggregate.COUNT_DISTINCT;
+                if (aggregate == Aggregate.COUNT_DISTINCT || (parenthesis && !accept("*"))) field = parseField();
+                if (parenthesis) expect(")");
+            }
+            else field = parseField();
+
+            Filter filter = accept("for") ? parseOr() : null;
+
+            LogField groupBy = null;
+            if (accept("group")) {
+                expect("by");
+                groupBy = parseField();
+                if (aggregate == Aggregate.NONE) throw new IllegalArgumentException("group by needs count");
+            }
+            if (pos < tokens.size()) throw new IllegalArgumentException("Unexpected " + tokens.get(pos));
+
+            //Date ranges joined with and to the rest of the condition become scan bounds
+            Date after = null;
+            Date before = null;
+            List<Filter> rest = new ArrayList<>();
+            List<Filter> conjuncts = new ArrayList<>();
+            if (filter instanceof Filter.And) conjuncts.addAll(((Filter.And) filter).getFilters());
+            else if (filter != null) conjuncts.add(filter);
+            for (Filter conjunct : conjuncts) {
+                if (conjunct instanceof Filter.Between) {
+                    Filter.Between range = (Filter.Between) conjunct;
+                    if (range.getAfter() != null && (after == null || range.getAfter().after(after))) after = range.getAfter();
+                    if (range.getBefore() != null && (before == null || range.getBefore().before(before))) before = range.getBefore();
+                }
+                else rest.add(conjunct);
+            }
+            return new QLStatement(field, aggregate, rest.isEmpty() ? null : Filter.and(rest), after, before, groupBy);
+        }
+
+        private Filter parseOr() {
+            List<Filter> filters = new ArrayList<>();
+            filters.add(parseAnd());
+            while (accept("or")) filters.add(parseAnd());
+            return Filter.or(filters);
+        }
+
+        private Filter parseAnd() {
+            List<Filter> filters = new ArrayList<>();
+            filters.add(parseAtom());
+            while (accept("and")) filters.add(parseAtom());
+            return Filter.and(filters);
+        }
+
+        private Filter parseAtom() {
+            if (accept("(")) {
+                Filter filter = parseOr();
+                expect(")");
+                return filter;
+            }
+            LogField field = parseField();
+            if (field == LogField.DATE && accept("between")) {
+                Date after = (Date) field.parseValue(parseValue());
+                expect("and");
+                Date before = (Date) field.parseValue(parseValue());
+                return Filter.between(after, before);
+            }
+            expect("=");
+            return Filter.eq(field, field.parseValue(parseValue()));
+        }
+
+        private String parseValue() {
+            String token = next();
+            if (token.startsWith("\"")) return token.substring(1);
+            //Unquoted value may have several words (user names), it ends at the next keyword
+            StringBuilder value = new StringBuilder(token);
+            while (pos < tokens.size() && !isKeyword(tokens.get(pos))) value.append(" ").append(next());
+            return value.toString();
+        }
+
+        private LogField parseField() {
+            return LogField.fromName(next());
+        }
+
+        private boolean isKeyword(String token) {
+            for (String keyword : new String[]{"and", "or", "group", ")"}) {
+                if (keyword.equalsIgnoreCase(token)) return true;
+            }
+            return false;
+        }
+
+        private String next() {
+            if (pos >= tokens.size()) throw new IllegalArgumentException("Query ended too early");
+            return tokens.get(pos++);
+        }
+
+        private boolean accept(String keyword) {
+            if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(keyword)) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String keyword) {
+            if (!accept(keyword)) throw new IllegalArgumentException("Expected " + keyword + (pos < tokens.size() ? " but got " + tokens.get(pos) : " at the end"));
+        }
+    }
+}
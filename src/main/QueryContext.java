@@ -0,0 +1,50 @@
+package main;
+
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cancellation state of an asynchronous query, bound to the thread running it
+ * Scans call checkpoint() every few thousand rows, so a cancelled or late query stops instead of finishing its scan
+ */
+class QueryContext {
+    private static final ThreadLocal<QueryContext> CURRENT = new ThreadLocal<>();
+
+    private final long deadlineNanos;
+    private volatile boolean cancelled;
+
+    public QueryContext(Duration deadline) {
+        deadlineNanos = deadline == null ? Long.MAX_VALUE : System.nanoTime() + deadline.toNanos();
+    }
+
+    /**
+     * Context of the query running on this thread, null for synchronous calls
+     */
+    public static QueryContext current() {
+        return CURRENT.get();
+    }
+
+    public void bind() {
+        CURRENT.set(this);
+    }
+
+    public static void unbind() {
+        CURRENT.remove();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos != Long.MAX_VALUE && System.nanoTime() - deadlineNanos > 0;
+    }
+
+    public void checkpoint() {
+        if (isExpired()) {
+            cancelled = true;
+            throw new CancellationException("Query deadline passed");
+        }
+        if (cancelled) throw new CancellationException("Query was cancelled");
+    }
+}
@@ -0,0 +1,105 @@
+package main;
+
+import java.util.Date;
+
+/**
+ * Access path chosen for a query together with the planner estimates, LogParser.explain also fills actual row counts
+ * SCAN reads every row of the segments overlapping the date range,
+ * INDEX reads only rows of the segment index for one field = value condition, then checks date and the rest of the filter
+ */
+public class QueryPlan {
+    public enum AccessPath {
+        SCAN,
+        INDEX
+    }
+
+    private final AccessPath accessPath;
+    private final Filter.Eq indexCondition;
+    private final Filter filter;
+    private final long after;
+    private final long before;
+    private final int segments;
+    private final double scanCost;
+    private final double indexCost;
+    private final double estimatedRowsScanned;
+    private final double estimatedRowsMatched;
+    private long rowsScanned = -1;
+    private long rowsMatched = -1;
+
+    QueryPlan(AccessPath accessPath, Filter.Eq indexCondition, Filter filter, long after, long before, int segments,
+              double scanCost, double indexCost, double estimatedRowsScanned, double estimatedRowsMatched) {
+        this.accessPath = accessPath;
+        this.indexCondition = indexCondition;
+        this.filter = filter;
+        this.after = after;
+        this.before = before;
+        this.segments = segments;
+        this.scanCost = scanCost;
+        this.indexCost = indexCost;
+        this.estimatedRowsScanned = estimatedRowsScanned;
+        this.estimatedRowsMatched = estimatedRowsMatched;
+    }
+
+    public AccessPath getAccessPath() {
+        return accessPath;
+    }
+
+    /**
+     * Condition answered from the index, null for SCAN
+     */
+    public Filter.Eq getIndexCondition() {
+        return indexCondition;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    public double getEstimatedRowsScanned() {
+        return estimatedRowsScanned;
+    }
+
+    public double getEstimatedRowsMatched() {
+        return estimatedRowsMatched;
+    }
+
+    /**
+     * Rows read by the execution, -1 until the plan is executed
+     */
+    public long getRowsScanned() {
+        return rowsScanned;
+    }
+
+    /**
+     * Rows which passed date range and filter, -1 until the plan is executed
+     */
+    public long getRowsMatched() {
+        return rowsMatched;
+    }
+
+    void setActualRows(long scanned, long matched) {
+        rowsScanned = scanned;
+        rowsMatched = matched;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("plan: ").append(accessPath);
+        if (indexCondition != null) sb.append(" ").append(indexCondition);
+        sb.append("\nrange: ").append(formatTime(after, Long.MIN_VALUE)).append(" - ").append(formatTime(before, Long.MAX_VALUE))
+                .append(", segments ").append(segments);
+        sb.append("\nfilter: ").append(filter == null ? "none" : filter.toString());
+        sb.append("\ncost: scan ").append(Math.round(scanCost)).append(", index ").append(indexCost < 0 ? "n/a" : String.valueOf(Math.round(indexCost)));
+        sb.append("\nrows scanned: estimated ").append(Math.round(estimatedRowsScanned)).append(", actual ").append(rowsScanned < 0 ? "n/a" : String.valueOf(rowsScanned));
+        sb.append("\nrows matched: estimated ").append(Math.round(estimatedRowsMatched)).append(", actual ").append(rowsMatched < 0 ? "n/a" : String.valueOf(rowsMatched));
+        return sb.toString();
+    }
+
+    private static String formatTime(long time, long unbounded) {
+        return time == unbounded ? "*" : LogField.DATE.formatValue(new Date(time));
+    }
+}
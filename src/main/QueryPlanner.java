@@ -0,0 +1,83 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses the cheapest access path of a filtered scan from segment statistics
+ * Cost is the number of rows read, rows reached through an index cost more since they are read out of order
+ * Segments without an index of the field add the cost of building it, the first query choosing the index builds it
+ */
+class QueryPlanner {
+    //Reading a row picked by an index compared to reading the next row of a scan
+    private static final double INDEX_ROW_COST = 4;
+    //Looking up the value in the index of one segment
+    private static final double INDEX_SEGMENT_COST = 8;
+    //Building an index reads every row of the segment twice, the index then serves later queries too,
+    //so its cost is spread over this many of them
+    private static final double INDEX_BUILD_ROW_COST = 2;
+    private static final double INDEX_BUILD_QUERIES = 4;
+
+    private QueryPlanner() {
+    }
+
+    public static QueryPlan plan(List<Segment> segments, Filter filter, long after, long before) {
+        return plan(segments, filter, after, before, true);
+    }
+
+    /**
+     * Without indexes only a scan is planned, used when building an index would not fit the memory budget
+     */
+    public static QueryPlan plan(List<Segment> segments, Filter filter, long after, long before, boolean indexes) {
+        List<Filter.Eq> candidates = indexes ? indexCandidates(filter) : new ArrayList<>();
+        double[] indexRows = new double[candidates.size()];
+        double[] buildRows = new double[candidates.size()];
+        double rowsScanned = 0;
+        double rowsMatched = 0;
+        for (Segment segment : segments) {
+            SegmentStatistics statistics = segment.getStatistics();
+            double inRange = statistics.getRows() * statistics.getTimeFraction(after, before);
+            //Zone maps tell exactly which blocks a scan reads
+            rowsScanned += segment.getZoneMap().countCandidateRows(filter, after, before);
+            rowsMatched += inRange * statistics.estimateSelectivity(filter);
+            //Index returns rows of the whole segment, the date range is checked on each of them
+            for (int i = 0; i < candidates.size(); i++) {
+                indexRows[i] += statistics.estimateEquals(candidates.get(i).getField(), candidates.get(i).getValue());
+                if (!segment.hasIndex(candidates.get(i).getField())) buildRows[i] += segment.size();
+            }
+        }
+
+        int best = -1;
+        double indexCost = -1;
+        for (int i = 0; i < candidates.size(); i++) {
+            double cost = indexRows[i] * INDEX_ROW_COST + segments.size() * INDEX_SEGMENT_COST
+                    + buildRows[i] * INDEX_BUILD_ROW_COST / INDEX_BUILD_QUERIES;
+            if (best < 0 || cost < indexCost) {
+                best = i;
+                indexCost = cost;
+            }
+        }
+        double scanCost = rowsScanned;
+        if (best >= 0 && indexCost < scanCost) {
+            return new QueryPlan(QueryPlan.AccessPath.INDEX, candidates.get(best), filter, after, before, segments.size(),
+                    scanCost, indexCost, indexRows[best], rowsMatched);
+        }
+        return new QueryPlan(QueryPlan.AccessPath.SCAN, null, filter, after, before, segments.size(),
+                scanCost, indexCost, rowsScanned, rowsMatched);
+    }
+
+    /**
+     * Equality conditions every matching row has to meet, any of them can drive the scan
+     */
+    private static List<Filter.Eq> indexCandidates(Filter filter) {
+        List<Filter> conjuncts = new ArrayList<>();
+        if (filter instanceof Filter.And) conjuncts.addAll(((Filter.And) filter).getFilters());
+        else if (filter != null) conjuncts.add(filter);
+
+        List<Filter.Eq> candidates = new ArrayList<>();
+        for (Filter conjunct : conjuncts) {
+            if (conjunct instanceof Filter.Eq && ((Filter.Eq) conjunct).getField() != LogField.DATE) candidates.add((Filter.Eq) conjunct);
+        }
+        return candidates;
+    }
+}
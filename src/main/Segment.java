@@ -0,0 +1,145 @@
+package main;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sealed block of entries, nothing is added after creation so readers can scan it without locking
+ * Column statistics and block zone maps are collected when the segment is created, postings indexes are built on first use
+ */
+class Segment {
+    private static final int[] NO_ROWS = new int[0];
+
+    private final EntryStore entries;
+    private final long minTime;
+    private final long maxTime;
+    private final SegmentStatistics statistics;
+    private final ZoneMap zoneMap;
+    //Rows of every value of an indexed field, in row order
+    private final Map<LogField, Map<Object, int[]>> indexes = new ConcurrentHashMap<>();
+    //Estimated bytes of each index, kept after the index is dropped so a rebuild just overwrites it
+    private final Map<LogField, Long> indexBytes = new ConcurrentHashMap<>();
+    //Rows never change once sealed, so their size is estimated once, -1 until then
+    private volatile long entryBytes = -1;
+
+    public Segment(EntryStore entries) {
+        this.entries = entries;
+        //Lazy entries are not decoded for good just to collect synopses, disk entries are read a page at a time
+        EntryStore scan = entries.uncached().reader();
+        long min = Long.MAX_VALUE;
+        long max = Long.MIN_VALUE;
+        for (int row = 0; row < scan.size(); row++) {
+            min = Math.min(min, scan.getTime(row));
+            max = Math.max(max, scan.getTime(row));
+        }
+        minTime = min;
+        maxTime = max;
+        statistics = new SegmentStatistics(scan);
+        zoneMap = new ZoneMap(scan);
+    }
+
+    /**
+     * For stores whose time range is already known, like sorted disk stores
+     */
+    public Segment(EntryStore entries, long minTime, long maxTime) {
+        this.entries = entries;
+        this.minTime = minTime;
+        this.maxTime = maxTime;
+        EntryStore scan = entries.uncached().reader();
+        statistics = new SegmentStatistics(scan);
+        zoneMap = new ZoneMap(scan);
+    }
+
+    public EntryStore getEntries() {
+        return entries;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getMinTime() {
+        return minTime;
+    }
+
+    public long getMaxTime() {
+        return maxTime;
+    }
+
+    public SegmentStatistics getStatistics() {
+        return statistics;
+    }
+
+    public ZoneMap getZoneMap() {
+        return zoneMap;
+    }
+
+    public boolean hasIndex(LogField field) {
+        return indexes.containsKey(field);
+    }
+
+    /**
+     * Rows where field equals value, the index of the field is built by the first call
+     */
+    public int[] getRows(LogField field, Object value) {
+        int[] rows = indexes.computeIfAbsent(field, this::buildIndex).get(value);
+        return rows == null ? NO_ROWS : rows;
+    }
+
+    private Map<Object, int[]> buildIndex(LogField field) {
+        if (field == LogField.DATE) throw new IllegalArgumentException("Dates are not indexed");
+        //First pass sizes the row lists, second one fills them
+        EntryStore scan = entries.reader();
+        Map<Object, int[]> counts = new HashMap<>();
+        for (int row = 0; row < scan.size(); row++) {
+            Object value = field.valueOf(scan, row);
+            if (value != null) counts.computeIfAbsent(value, k -> new int[1])[0]++;
+        }
+        Map<Object, int[]> index = new HashMap<>();
+        //Keys are values already held by the rows (or the dictionaries), only entries and row lists are new
+        long bytes = MemoryUsage.arrayBytes(counts.size() * 4L / 3, MemoryUsage.REFERENCE);
+        for (Map.Entry<Object, int[]> count : counts.entrySet()) {
+            index.put(count.getKey(), new int[count.getValue()[0]]);
+            bytes += MemoryUsage.MAP_ENTRY + MemoryUsage.arrayBytes(count.getValue()[0], Integer.BYTES);
+            count.getValue()[0] = 0;
+        }
+        indexBytes.put(field, bytes);
+        for (int row = 0; row < scan.size(); row++) {
+            Object value = field.valueOf(scan, row);
+            if (value != null) index.get(value)[counts.get(value)[0]++] = row;
+        }
+        return index;
+    }
+
+    /**
+     * Drops every postings index, later queries rebuild the ones they choose
+     * Queries already holding row lists of a dropped index keep using them
+     */
+    public void dropIndexes() {
+        indexes.clear();
+    }
+
+    public long getIndexBytes() {
+        long bytes = 0;
+        for (LogField field : indexes.keySet()) bytes += indexBytes.getOrDefault(field, 0L);
+        return bytes;
+    }
+
+    public long getEntryBytes() {
+        if (entryBytes < 0) entryBytes = entries.getEstimatedBytes();
+        return entryBytes;
+    }
+
+    /**
+     * Column statistics and zone map
+     */
+    public long getSynopsisBytes() {
+        return statistics.getEstimatedBytes() + zoneMap.getEstimatedBytes();
+    }
+
+    public void close() {
+        indexes.clear();
+        entries.close();
+    }
+}
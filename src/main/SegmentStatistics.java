@@ -0,0 +1,151 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Column statistics of one segment, collected once when the segment is sealed
+ * Event, status and task frequencies are exact, distinct users and ips are HyperLogLog estimates,
+ * timestamps are summarized by an equi-depth histogram (every bucket holds about the same number of rows)
+ */
+class SegmentStatistics {
+    private static final int TIME_BUCKETS = 16;
+
+    private final int rows;
+    private final int[] eventCounts = new int[Event.values().length];
+    private final int[] statusCounts = new int[Status.values().length];
+    private final Map<Integer, Integer> taskCounts = new HashMap<>();
+    private final HyperLogLog users = new HyperLogLog();
+    private final HyperLogLog ips = new HyperLogLog();
+    private final long distinctUsers;
+    private final long distinctIps;
+    //Bucket i spans timeBounds[i] to timeBounds[i + 1] and holds bucketRows(i) rows
+    private final long[] timeBounds;
+
+    public SegmentStatistics(EntryStore entries) {
+        rows = entries.size();
+        long[] times = new long[rows];
+        for (int row = 0; row < rows; row++) {
+            times[row] = entries.getTime(row);
+            Event event = entries.getEvent(row);
+            eventCounts[event.ordinal()]++;
+            statusCounts[entries.getStatus(row).ordinal()]++;
+            if (LogField.hasTask(event)) taskCounts.merge(entries.getTaskNumber(row), 1, Integer::sum);
+            users.add(entries.getUser(row));
+            ips.add(entries.getIp(row));
+        }
+        distinctUsers = users.estimate();
+        distinctIps = ips.estimate();
+
+        Arrays.sort(times);
+        int buckets = Math.min(TIME_BUCKETS, rows);
+        timeBounds = new long[buckets + 1];
+        for (int i = 0; i < buckets; i++) timeBounds[i] = times[(int) ((long) i * rows / buckets)];
+        if (rows > 0) timeBounds[buckets] = times[rows - 1];
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getEventCount(Event event) {
+        return eventCounts[event.ordinal()];
+    }
+
+    public int getStatusCount(Status status) {
+        return statusCounts[status.ordinal()];
+    }
+
+    public Map<Integer, Integer> getTaskCounts() {
+        return taskCounts;
+    }
+
+    public HyperLogLog getUsers() {
+        return users;
+    }
+
+    public HyperLogLog getIps() {
+        return ips;
+    }
+
+    /**
+     * Estimated share of rows with time between after and before, both included
+     */
+    public double getTimeFraction(long after, long before) {
+        if (rows == 0 || after > before) return 0;
+        int buckets = timeBounds.length - 1;
+        double matching = 0;
+        for (int i = 0; i < buckets; i++) {
+            long low = timeBounds[i];
+            long high = timeBounds[i + 1];
+            if (high < after || low > before) continue;
+            //Rows are assumed to be spread evenly inside a bucket
+            double share = high == low ? 1 : (double) (Math.min(high, before) - Math.max(low, after)) / (high - low);
+            matching += bucketRows(i) * Math.max(share, 0);
+        }
+        return Math.min(1, matching / rows);
+    }
+
+    /**
+     * Estimated number of rows where field equals value
+     */
+    public double estimateEquals(LogField field, Object value) {
+        if (value == null || rows == 0) return 0;
+        switch (field) {
+            case EVENT:
+                return getEventCount((Event) value);
+            case STATUS:
+                return getStatusCount((Status) value);
+            case TASK:
+                return taskCounts.getOrDefault(value, 0);
+            case USER:
+                return (double) rows / Math.max(1, distinctUsers);
+            case IP:
+                return (double) rows / Math.max(1, distinctIps);
+            default:
+                long time = ((Date) value).getTime();
+                return rows * getTimeFraction(time, time);
+        }
+    }
+
+    /**
+     * Estimated share of rows matching the filter, conditions are taken as independent
+     */
+    public double estimateSelectivity(Filter filter) {
+        if (filter == null) return 1;
+        if (rows == 0) return 0;
+        if (filter instanceof Filter.Eq) {
+            Filter.Eq eq = (Filter.Eq) filter;
+            return Math.min(1, estimateEquals(eq.getField(), eq.getValue()) / rows);
+        }
+        if (filter instanceof Filter.Between) {
+            Filter.Between range = (Filter.Between) filter;
+            long after = range.getAfter() == null ? Long.MIN_VALUE : range.getAfter().getTime();
+            long before = range.getBefore() == null ? Long.MAX_VALUE : range.getBefore().getTime();
+            return getTimeFraction(after, before);
+        }
+        if (filter instanceof Filter.And) {
+            double selectivity = 1;
+            for (Filter part : ((Filter.And) filter).getFilters()) selectivity *= estimateSelectivity(part);
+            return selectivity;
+        }
+        double missed = 1;
+        for (Filter part : ((Filter.Or) filter).getFilters()) missed *= 1 - estimateSelectivity(part);
+        return 1 - missed;
+    }
+
+    public long getEstimatedBytes() {
+        //Task counts are a HashMap of boxed numbers, small ones are shared
+        long taskBytes = taskCounts.size() * (long) (MemoryUsage.MAP_ENTRY + MemoryUsage.REFERENCE + MemoryUsage.BOXED);
+        return users.getEstimatedBytes() + ips.getEstimatedBytes() + taskBytes
+                + MemoryUsage.arrayBytes(eventCounts.length, Integer.BYTES) + MemoryUsage.arrayBytes(statusCounts.length, Integer.BYTES)
+                + MemoryUsage.arrayBytes(timeBounds.length, Long.BYTES);
+    }
+
+    private int bucketRows(int bucket) {
+        int buckets = timeBounds.length - 1;
+        return (int) ((long) (bucket + 1) * rows / buckets - (long) bucket * rows / buckets);
+    }
+}
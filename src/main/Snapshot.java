@@ -0,0 +1,58 @@
+package main;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consistent immutable view of LogParser partitions, replaced as a whole whenever segments are added or evicted
+ * Readers pin the snapshot while scanning, segments dropped by a newer snapshot are closed only once
+ * this snapshot and all older ones are no longer pinned, so off-heap memory is never freed under a reader
+ */
+class Snapshot {
+    private final NavigableMap<Long, Partition> partitions;
+    //Held by LogParser while current, by each reader while it scans and by the previous snapshot until that one drains
+    private final AtomicInteger pins;
+    private Snapshot next;
+    private List<Segment> retired = Collections.emptyList();
+
+    /**
+     * Snapshot takes over given map, it must not be changed afterwards
+     */
+    public Snapshot(NavigableMap<Long, Partition> partitions, boolean hasPrevious) {
+        this.partitions = Collections.unmodifiableNavigableMap(partitions);
+        pins = new AtomicInteger(hasPrevious ? 2 : 1);
+    }
+
+    public NavigableMap<Long, Partition> getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Fails only when the snapshot is already replaced and drained, caller should read the current one again
+     */
+    public boolean tryPin() {
+        while (true) {
+            int count = pins.get();
+            if (count == 0) return false;
+            if (pins.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    public void unpin() {
+        if (pins.decrementAndGet() == 0) {
+            for (Segment segment : retired) segment.close();
+            if (next != null) next.unpin();
+        }
+    }
+
+    /**
+     * Called by the writer when next snapshot is published, retired segments are the ones next no longer has
+     */
+    public void replace(Snapshot next, List<Segment> retired) {
+        this.next = next;
+        this.retired = retired;
+        unpin();
+    }
+}
@@ -1,11 +1,29 @@
 package main;
 
+import java.io.UncheckedIOException;
 import java.nio.file.Paths;
 import java.util.Date;
 
 public class Solution {
     public static void main(String[] args) {
+        if (args.length >= 2) {
+            //One-shot query: logDir "get ... for ...", answered by streaming the files, no LogParser is built
+            try {
+                for (Object value : LogScanner.execute(Paths.get(args[0]), args[1])) System.out.println(format(value));
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+                System.exit(1);
+            } catch (UncheckedIOException e) {
+                System.err.println("Cannot read logs: " + e.getCause());
+                System.exit(1);
+            }
+            return;
+        }
         LogParser logParser = new LogParser(Paths.get("F:\\nauka\\CodeGymTasks\\4.JavaCollections\\src\\com\\codegym\\task\\task39\\task3913\\logs"));
         System.out.println(logParser.getNumberOfUniqueIPs(null, new Date()));
     }
+
+    private static String format(Object value) {
+        return value instanceof Date ? LogField.DATE.formatValue(value) : String.valueOf(value);
+    }
 }
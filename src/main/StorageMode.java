@@ -0,0 +1,18 @@
+package main;
+
+/**
+ * Defines how LogParser keeps log entries in memory
+ * EAGER parses every field of every line while loading
+ * LAZY keeps raw line bytes plus date and event, other fields are decoded when a query needs them
+ * COLUMNAR keeps one primitive array per field on the heap, scans filter whole blocks of rows at once
+ * OFF_HEAP keeps fixed-width records in direct memory, LogParser has to be closed to release it
+ * DISK sorts fixed-width records into temp files within a memory budget and reads them through a bounded page cache,
+ * LogParser has to be closed to delete the files
+ */
+public enum StorageMode {
+    EAGER,
+    LAZY,
+    COLUMNAR,
+    OFF_HEAP,
+    DISK
+}
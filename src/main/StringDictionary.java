@@ -0,0 +1,52 @@
+package main;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps repeating strings (ips, user names) to int ids, so records can store fixed-width ids instead of strings
+ * Ids are assigned by a single writer, values can be read from any thread for ids it got through a published snapshot
+ * and ids of known values can be looked up from any thread
+ */
+class StringDictionary {
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] values = new String[16];
+    //Map entries and values added so far, the values array is counted when asked
+    private volatile long valueBytes;
+
+    public int getId(String value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = ids.size();
+            String[] current = values;
+            //Readers may still hold the old array, it keeps every value they can ask for
+            if (id == current.length) current = Arrays.copyOf(current, current.length * 2);
+            current[id] = value;
+            values = current;
+            ids.put(value, id);
+            valueBytes += MemoryUsage.MAP_ENTRY + MemoryUsage.REFERENCE + MemoryUsage.BOXED + MemoryUsage.stringBytes(value);
+        }
+        return id;
+    }
+
+    /**
+     * Id of a value without adding it, -1 when the value is unknown
+     */
+    public int findId(String value) {
+        Integer id = value == null ? null : ids.get(value);
+        return id == null ? -1 : id;
+    }
+
+    public String getValue(int id) {
+        return values[id];
+    }
+
+    public int size() {
+        return ids.size();
+    }
+
+    public long getEstimatedBytes() {
+        return valueBytes + MemoryUsage.arrayBytes(values.length, MemoryUsage.REFERENCE);
+    }
+}
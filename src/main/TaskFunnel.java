@@ -0,0 +1,122 @@
+package main;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Attempt to completion funnel of one task
+ * Keeps the first attempt and first completion of every user, everything else is derived from them
+ * A user converted when they attempted the task and completed it at or after their first attempt
+ */
+public class TaskFunnel implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int task;
+    private final Map<String, Long> firstAttempts;
+    private final Map<String, Long> firstCompletions;
+
+    public TaskFunnel(int task, Map<String, Long> firstAttempts, Map<String, Long> firstCompletions) {
+        this.task = task;
+        this.firstAttempts = Collections.unmodifiableMap(new HashMap<>(firstAttempts));
+        this.firstCompletions = Collections.unmodifiableMap(new HashMap<>(firstCompletions));
+    }
+
+    public int getTask() {
+        return task;
+    }
+
+    /**
+     * Epoch millis of the first attempt per user
+     */
+    public Map<String, Long> getFirstAttempts() {
+        return firstAttempts;
+    }
+
+    /**
+     * Epoch millis of the first completion per user
+     */
+    public Map<String, Long> getFirstCompletions() {
+        return firstCompletions;
+    }
+
+    public Set<String> getAttemptedUsers() {
+        return firstAttempts.keySet();
+    }
+
+    public Set<String> getCompletedUsers() {
+        return firstCompletions.keySet();
+    }
+
+    /**
+     * Users who attempted the task and never completed it
+     */
+    public Set<String> getAbandonedUsers() {
+        Set<String> users = new HashSet<>(firstAttempts.keySet());
+        users.removeAll(firstCompletions.keySet());
+        return users;
+    }
+
+    /**
+     * Time from first attempt to first completion per converted user
+     */
+    public Map<String, Long> getTimesToComplete() {
+        Map<String, Long> times = new HashMap<>();
+        for (Map.Entry<String, Long> attempt : firstAttempts.entrySet()) {
+            Long completion = firstCompletions.get(attempt.getKey());
+            if (completion != null && completion >= attempt.getValue()) times.put(attempt.getKey(), completion - attempt.getValue());
+        }
+        return times;
+    }
+
+    /**
+     * Converted users divided by users who attempted the task, 0 when nobody attempted it
+     */
+    public double getConversionRate() {
+        return firstAttempts.isEmpty() ? 0 : (double) getTimesToComplete().size() / firstAttempts.size();
+    }
+
+    /**
+     * Time to complete below which given percent (0 - 100) of converted users finished, -1 when nobody converted
+     */
+    public long getTimeToCompletePercentile(double percent) {
+        if (percent < 0 || percent > 100) throw new IllegalArgumentException("Percent must be between 0 and 100: " + percent);
+        long[] times = getSortedTimesToComplete();
+        if (times.length == 0) return -1;
+        //Nearest rank
+        int rank = (int) Math.ceil(percent / 100 * times.length);
+        return times[Math.max(rank, 1) - 1];
+    }
+
+    public long[] getSortedTimesToComplete() {
+        long[] times = new long[firstAttempts.size()];
+        int size = 0;
+        for (long time : getTimesToComplete().values()) times[size++] = time;
+        times = Arrays.copyOf(times, size);
+        Arrays.sort(times);
+        return times;
+    }
+
+    /**
+     * Funnel of the same task over both entry sets, earlier first attempts and completions win
+     */
+    public TaskFunnel merge(TaskFunnel other) {
+        if (other.task != task) throw new IllegalArgumentException("Cannot merge funnels of tasks " + task + " and " + other.task);
+        Map<String, Long> attempts = new HashMap<>(firstAttempts);
+        Map<String, Long> completions = new HashMap<>(firstCompletions);
+        other.firstAttempts.forEach((user, time) -> attempts.merge(user, time, Math::min));
+        other.firstCompletions.forEach((user, time) -> completions.merge(user, time, Math::min));
+        return new TaskFunnel(task, attempts, completions);
+    }
+
+    @Override
+    public String toString() {
+        return "task " + task + ": attempted " + firstAttempts.size() + ", completed " + firstCompletions.size()
+                + ", abandoned " + getAbandonedUsers().size() + ", conversion " + String.format("%.3f", getConversionRate())
+                + ", median time to complete " + getTimeToCompletePercentile(50) + "ms";
+    }
+}
@@ -0,0 +1,43 @@
+package main.Test;
+
+import main.LogParser;
+import main.StorageMode;
+import main.bench.LoadGenerator;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * Interrupts threads while they read DISK pages, queries of other threads and later queries must still answer
+ * The page cache is kept small, so queries keep reading the data file
+ */
+public class DiskInterruptTest {
+    public static void main(String[] args) throws Exception {
+        Path logDir = LoadGenerator.writeSyntheticLogs(100_000, 4, 42);
+        try (LogParser logParser = new LogParser(logDir, StorageMode.DISK, Duration.ofDays(3650), path -> true, 4L << 20)) {
+            Set<String> expected = logParser.getUniqueIPs(null, null);
+            for (int i = 0; i < 20; i++) {
+                Thread reader = new Thread(() -> {
+                    try {
+                        while (!Thread.currentThread().isInterrupted()) logParser.getUniqueIPs(null, null);
+                    } catch (RuntimeException e) {
+                        //Interrupted read fails this reader's query
+                    }
+                });
+                reader.start();
+                Thread.sleep(5);
+                reader.interrupt();
+                reader.join();
+            }
+            try {
+                Set<String> after = logParser.getUniqueIPs(null, null);
+                System.out.println(after.equals(expected) ? "OK" : "FAILED: " + after.size() + " ips instead of " + expected.size());
+            } catch (RuntimeException e) {
+                System.out.println("FAILED: " + e);
+            }
+        } finally {
+            LoadGenerator.deleteDirectory(logDir);
+        }
+    }
+}
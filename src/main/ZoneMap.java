@@ -0,0 +1,169 @@
+package main;
+
+import java.util.Date;
+
+/**
+ * Synopsis of fixed-size blocks of a segment, lets scans skip blocks where no row can match
+ * Each block keeps min/max time, bit masks of present events and statuses, min/max task number
+ * and a bloom filter over its users and ips
+ * Synopses can only rule blocks out, rows of remaining blocks are still checked one by one
+ */
+class ZoneMap {
+    static final int BLOCK_ROWS = 1 << 10;
+    //2048 bits per block keep false positives around 3% with a few hundred distinct users and ips
+    private static final int BLOOM_LONGS = 32;
+    private static final int BLOOM_BITS = BLOOM_LONGS * 64;
+    private static final int BLOOM_HASHES = 3;
+    //Users and ips share the bloom filter, ip hashes are seeded differently
+    private static final long IP_SEED = 0x9E3779B97F4A7C15L;
+
+    private final int rows;
+    private final long[] minTimes;
+    private final long[] maxTimes;
+    private final int[] eventMasks;
+    private final int[] statusMasks;
+    private final int[] minTasks;
+    private final int[] maxTasks;
+    private final long[] blooms;
+
+    public ZoneMap(EntryStore entries) {
+        rows = entries.size();
+        int blocks = (rows + BLOCK_ROWS - 1) / BLOCK_ROWS;
+        minTimes = new long[blocks];
+        maxTimes = new long[blocks];
+        eventMasks = new int[blocks];
+        statusMasks = new int[blocks];
+        minTasks = new int[blocks];
+        maxTasks = new int[blocks];
+        blooms = new long[blocks * BLOOM_LONGS];
+        for (int block = 0; block < blocks; block++) {
+            minTimes[block] = Long.MAX_VALUE;
+            maxTimes[block] = Long.MIN_VALUE;
+            minTasks[block] = Integer.MAX_VALUE;
+            maxTasks[block] = Integer.MIN_VALUE;
+            for (int row = getFirstRow(block); row < getEndRow(block); row++) {
+                long time = entries.getTime(row);
+                minTimes[block] = Math.min(minTimes[block], time);
+                maxTimes[block] = Math.max(maxTimes[block], time);
+                Event event = entries.getEvent(row);
+                eventMasks[block] |= 1 << event.ordinal();
+                statusMasks[block] |= 1 << entries.getStatus(row).ordinal();
+                if (LogField.hasTask(event)) {
+                    int task = entries.getTaskNumber(row);
+                    minTasks[block] = Math.min(minTasks[block], task);
+                    maxTasks[block] = Math.max(maxTasks[block], task);
+                }
+                addToBloom(block, hash(entries.getUser(row), 0));
+                addToBloom(block, hash(entries.getIp(row), IP_SEED));
+            }
+        }
+    }
+
+    public int getBlocks() {
+        return minTimes.length;
+    }
+
+    public int getFirstRow(int block) {
+        return block * BLOCK_ROWS;
+    }
+
+    public int getEndRow(int block) {
+        return Math.min(rows, (block + 1) * BLOCK_ROWS);
+    }
+
+    public long getEstimatedBytes() {
+        return 2 * MemoryUsage.arrayBytes(minTimes.length, Long.BYTES) + 4 * MemoryUsage.arrayBytes(eventMasks.length, Integer.BYTES)
+                + MemoryUsage.arrayBytes(blooms.length, Long.BYTES);
+    }
+
+    /**
+     * True when every row of the block is inside the range, so rows need no date check
+     */
+    public boolean isCovered(int block, long after, long before) {
+        return minTimes[block] >= after && maxTimes[block] <= before;
+    }
+
+    /**
+     * False when no row of the block can be in the range and match the filter
+     */
+    public boolean mayMatch(int block, Filter filter, long after, long before) {
+        if (maxTimes[block] < after || minTimes[block] > before) return false;
+        return filter == null || mayMatch(block, filter);
+    }
+
+    /**
+     * Rows of blocks which may match, that is the rows a scan reads
+     */
+    public int countCandidateRows(Filter filter, long after, long before) {
+        int count = 0;
+        for (int block = 0; block < getBlocks(); block++) {
+            if (mayMatch(block, filter, after, before)) count += getEndRow(block) - getFirstRow(block);
+        }
+        return count;
+    }
+
+    private boolean mayMatch(int block, Filter filter) {
+        if (filter instanceof Filter.Eq) {
+            Filter.Eq eq = (Filter.Eq) filter;
+            Object value = eq.getValue();
+            if (value == null) return false;
+            switch (eq.getField()) {
+                case EVENT:
+                    return (eventMasks[block] & (1 << ((Event) value).ordinal())) != 0;
+                case STATUS:
+                    return (statusMasks[block] & (1 << ((Status) value).ordinal())) != 0;
+                case TASK:
+                    int task = (Integer) value;
+                    return task >= minTasks[block] && task <= maxTasks[block];
+                case USER:
+                    return mayContain(block, hash((String) value, 0));
+                case IP:
+                    return mayContain(block, hash((String) value, IP_SEED));
+                default:
+                    long time = ((Date) value).getTime();
+                    return time >= minTimes[block] && time <= maxTimes[block];
+            }
+        }
+        if (filter instanceof Filter.Between) {
+            Filter.Between range = (Filter.Between) filter;
+            return (range.getAfter() == null || maxTimes[block] >= range.getAfter().getTime())
+                    && (range.getBefore() == null || minTimes[block] <= range.getBefore().getTime());
+        }
+        if (filter instanceof Filter.And) {
+            for (Filter part : ((Filter.And) filter).getFilters()) {
+                if (!mayMatch(block, part)) return false;
+            }
+            return true;
+        }
+        for (Filter part : ((Filter.Or) filter).getFilters()) {
+            if (mayMatch(block, part)) return true;
+        }
+        return false;
+    }
+
+    private void addToBloom(int block, long hash) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(hash, i);
+            blooms[block * BLOOM_LONGS + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mayContain(int block, long hash) {
+        for (int i = 0; i < BLOOM_HASHES; i++) {
+            int bit = bloomBit(hash, i);
+            if ((blooms[block * BLOOM_LONGS + (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static int bloomBit(long hash, int i) {
+        //Double hashing, both halves of the hash give every bit position
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return (h1 + i * h2) & (BLOOM_BITS - 1);
+    }
+
+    private static long hash(String value, long seed) {
+        return HyperLogLog.mix(value.hashCode() ^ seed);
+    }
+}
@@ -0,0 +1,136 @@
+package main.bench;
+
+import main.LogParser;
+import main.StorageMode;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Reports reader throughput of one LogParser while nothing else happens, while files are appended
+ * and while appended files fall behind the retention window, so every append also evicts a partition
+ * Readers run the LoadGenerator mix closed loop, the appender writes small synthetic files at a fixed rate
+ */
+public class AppendStress {
+    private static final int BASE_LINES = 100_000;
+    private static final int BASE_FILES = 4;
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    //Base data covers the last BASE_DAYS, retention keeps RETENTION_DAYS so it is never evicted
+    private static final int BASE_DAYS = 28;
+    private static final int RETENTION_DAYS = 30;
+
+    private final LogParser logParser;
+    private final LoadGenerator generator;
+
+    public AppendStress(LogParser logParser) {
+        this.logParser = logParser;
+        generator = new LoadGenerator(logParser, new int[]{20, 30, 20, 20, 10});
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        StorageMode mode = args.length > 2 ? StorageMode.valueOf(args[2]) : StorageMode.EAGER;
+        int linesPerAppend = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        double appendsPerSecond = args.length > 4 ? Double.parseDouble(args[4]) : 20;
+
+        long now = System.currentTimeMillis();
+        Path logDir = LoadGenerator.writeSyntheticLogs(BASE_LINES, BASE_FILES, 42, now - BASE_DAYS * DAY, BASE_DAYS * DAY);
+        try (LogParser logParser = new LogParser(logDir, mode)) {
+            logParser.setRetentionDays(RETENTION_DAYS);
+            System.out.printf("Loaded %d lines, mode %s, %d threads, %d lines per append, %s appends/s%n",
+                    BASE_LINES, mode, threads, linesPerAppend, appendsPerSecond);
+            AppendStress stress = new AppendStress(logParser);
+            stress.generator.run(threads, 0, 2);
+
+            stress.run("readers only", threads, seconds, null);
+            //Appended rows land inside the window, the parser grows while readers run
+            stress.run("with appends", threads, seconds,
+                    new Appender(logParser, linesPerAppend, appendsPerSecond, now - BASE_DAYS * DAY, BASE_DAYS * DAY));
+            //Appended rows are older than the window, each append publishes them and evicts them again
+            stress.run("with appends and retention", threads, seconds,
+                    new Appender(logParser, linesPerAppend, appendsPerSecond, now - (RETENTION_DAYS + 5) * DAY, 4 * DAY));
+        } finally {
+            LoadGenerator.deleteDirectory(logDir);
+        }
+    }
+
+    private void run(String name, int threads, int seconds, Appender appender) throws InterruptedException {
+        Thread thread = null;
+        if (appender != null) {
+            thread = new Thread(appender, "append-stress");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        LoadGenerator.Report report;
+        try {
+            report = generator.run(threads, 0, seconds);
+        } finally {
+            if (appender != null) {
+                appender.stop();
+                thread.join();
+            }
+        }
+        if (appender != null && appender.failure.get() != null) throw appender.failure.get();
+
+        System.out.printf("%n%s: %.0f queries/s", name, report.getThroughput());
+        if (appender != null) System.out.printf(", %.1f appends/s, %d rows, %d partitions",
+                appender.appends.get() / (double) seconds, logParser.getMemoryUsage().getRows(), logParser.getPartitionCount());
+        System.out.println();
+        report.print();
+    }
+
+    /**
+     * Writes a synthetic file with dates in the given range and appends it, at a fixed rate until stopped
+     */
+    private static class Appender implements Runnable {
+        private final LogParser logParser;
+        private final int lines;
+        private final long interval;
+        private final long start;
+        private final long span;
+        private final AtomicLong appends = new AtomicLong();
+        private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        private volatile boolean stopped;
+
+        Appender(LogParser logParser, int lines, double appendsPerSecond, long start, long span) {
+            this.logParser = logParser;
+            this.lines = lines;
+            this.interval = (long) (1e9 / appendsPerSecond);
+            this.start = start;
+            this.span = span;
+        }
+
+        void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime();
+            long seed = 1;
+            while (!stopped) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                Path dir = null;
+                try {
+                    dir = LoadGenerator.writeSyntheticLogs(lines, 1, seed++, start, span);
+                    logParser.append(dir);
+                    appends.incrementAndGet();
+                } catch (Exception e) {
+                    failure.compareAndSet(null, e instanceof RuntimeException ? (RuntimeException) e : new IllegalStateException(e));
+                    return;
+                } finally {
+                    if (dir != null) LoadGenerator.deleteDirectory(dir);
+                }
+                next += interval;
+            }
+        }
+    }
+}
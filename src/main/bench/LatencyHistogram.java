@@ -0,0 +1,72 @@
+package main.bench;
+
+/**
+ * Log-linear histogram of latencies in nanoseconds, in the style of HdrHistogram
+ * Every power of two is split into 64 linear buckets, so any recorded value is off by less than 1.6%
+ * Not thread safe, each load thread records into its own histogram and they are merged for the report
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long totalCount;
+    private long max;
+    private double sum;
+
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[index(value)]++;
+        totalCount++;
+        max = Math.max(max, value);
+        sum += value;
+    }
+
+    public void merge(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) counts[i] += other.counts[i];
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+        sum += other.sum;
+    }
+
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return totalCount == 0 ? 0 : sum / totalCount;
+    }
+
+    /**
+     * Smallest recorded value which is not below given percent (0 - 100) of all values, reported as its bucket's upper end
+     */
+    public long getPercentile(double percent) {
+        if (totalCount == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(percent / 100 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(highestEquivalent(i), max);
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        //Leading one and the next SUB_BUCKET_BITS - 2 bits pick the bucket, the shift says which power of two
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    private static long highestEquivalent(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int shift = (index - HALF_SUB_BUCKETS) >>> (SUB_BUCKET_BITS - 1);
+        long mantissa = index - ((long) shift << (SUB_BUCKET_BITS - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,439 @@
+package main.bench;
+
+import main.Event;
+import main.LogParser;
+import main.Status;
+import main.StorageMode;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Drives a mix of IPQuery, UserQuery, DateQuery, EventQuery and QLQuery calls against one LogParser from several threads
+ * and reports throughput, latency percentiles and allocated bytes for each query type
+ *
+ * With a target rate the load is open loop: every query has an intended start time and its latency is counted from it,
+ * so a stalled parser shows up in the percentiles instead of just slowing the load down
+ * With rate 0 each thread sends its next query as soon as the previous one returns
+ */
+public class LoadGenerator {
+    private static final int SYNTHETIC_LINES = 100_000;
+    private static final int SYNTHETIC_FILES = 4;
+    private static final String[] FIRST_NAMES = {"Amigo", "Bob", "Eduard", "Jane", "Vasya", "Diego", "Kim", "Lena", "Omar", "Rita"};
+    private static final String[] LAST_NAMES = {"Smith", "Bentley", "Doe", "Petrov", "Garcia", "Lee", "Novak", "Khan", "Rossi", "Berg"};
+
+    public enum QueryType {
+        IP,
+        USER,
+        DATE,
+        EVENT,
+        QL
+    }
+
+    private final LogParser logParser;
+    private final Sample sample;
+    private final int[] weights;
+    private final int totalWeight;
+
+    public LoadGenerator(LogParser logParser, int[] weights) {
+        this.logParser = logParser;
+        this.sample = new Sample(logParser);
+        this.weights = weights.clone();
+        int total = 0;
+        for (int weight : weights) total += weight;
+        this.totalWeight = total;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: LoadGenerator logDir|- [threads] [rate] [seconds] [warmupSeconds] [storageMode] [mix]");
+            System.err.println("  - generates a synthetic log directory, rate 0 runs closed loop, mix is like IP=20,USER=30,DATE=20,EVENT=20,QL=10");
+            System.exit(1);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        double rate = args.length > 2 ? Double.parseDouble(args[2]) : 0;
+        int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        int warmupSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+        StorageMode mode = args.length > 5 ? StorageMode.valueOf(args[5]) : StorageMode.EAGER;
+        int[] weights = parseMix(args.length > 6 ? args[6] : "IP=20,USER=30,DATE=20,EVENT=20,QL=10");
+
+        boolean synthetic = args[0].equals("-");
+        Path logDir = synthetic ? writeSyntheticLogs(SYNTHETIC_LINES, SYNTHETIC_FILES, 42) : Paths.get(args[0]);
+        try {
+            long loadStart = System.nanoTime();
+            try (LogParser logParser = new LogParser(logDir, mode)) {
+                System.out.printf("Loaded %s in %d ms, mode %s, %d threads, rate %s%n", logDir,
+                        (System.nanoTime() - loadStart) / 1_000_000, mode, threads, rate > 0 ? rate + "/s" : "unbounded");
+                LoadGenerator generator = new LoadGenerator(logParser, weights);
+                if (warmupSeconds > 0) generator.run(threads, rate, warmupSeconds);
+                generator.run(threads, rate, seconds).print();
+            }
+        } finally {
+            if (synthetic) deleteDirectory(logDir);
+        }
+    }
+
+    /**
+     * Runs the mix for given number of seconds, rate is the target of all threads together, 0 for no target
+     */
+    public Report run(int threads, double rate, int seconds) throws InterruptedException {
+        com.sun.management.ThreadMXBean threadBean = allocationBean();
+        Recorder[] recorders = new Recorder[threads];
+        CountDownLatch done = new CountDownLatch(threads);
+        AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        long start = System.nanoTime() + 10_000_000;
+        long end = start + seconds * 1_000_000_000L;
+        //Each thread takes an equal share of the rate, its queries are spaced evenly
+        long interval = rate > 0 ? (long) (threads * 1e9 / rate) : 0;
+        for (int t = 0; t < threads; t++) {
+            Recorder recorder = new Recorder(new Random(31L * t + 7));
+            recorders[t] = recorder;
+            //Threads start out of phase so their intended start times do not line up
+            long first = start + interval * t / threads;
+            Thread thread = new Thread(() -> {
+                try {
+                    recorder.drive(threadBean, first, end, interval);
+                } catch (RuntimeException e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + t);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+        //A failing query would skew the numbers, the run is reported as failed instead
+        if (failure.get() != null) throw failure.get();
+
+        Report report = new Report(System.nanoTime() - start);
+        for (Recorder recorder : recorders) report.merge(recorder);
+        return report;
+    }
+
+    private QueryType pick(Random random) {
+        int r = random.nextInt(totalWeight);
+        for (QueryType type : QueryType.values()) {
+            r -= weights[type.ordinal()];
+            if (r < 0) return type;
+        }
+        return QueryType.QL;
+    }
+
+    /**
+     * Runs one query of given type with random arguments, returns something of the result so it can't be optimized away
+     */
+    private int query(QueryType type, Random random) {
+        Date[] range = sample.range(random);
+        String user = sample.user(random);
+        String ip = sample.ip(random);
+        switch (type) {
+            case IP:
+                switch (random.nextInt(4)) {
+                    case 0: return logParser.getNumberOfUniqueIPs(range[0], range[1]);
+                    case 1: return logParser.getIPsForUser(user, range[0], range[1]).size();
+                    case 2: return logParser.getIPsForEvent(sample.event(random), range[0], range[1]).size();
+                    default: return logParser.getIPsForStatus(sample.status(random), range[0], range[1]).size();
+                }
+            case USER:
+                switch (random.nextInt(5)) {
+                    case 0: return logParser.getNumberOfUsers(range[0], range[1]);
+                    case 1: return logParser.getNumberOfUserEvents(user, range[0], range[1]);
+                    case 2: return logParser.getUsersForIP(ip, range[0], range[1]).size();
+                    case 3: return logParser.getUsersWhoHaveAttemptedTasks(range[0], range[1], sample.task(random)).size();
+                    default: return logParser.getUsersWhoHaveCompletedTasks(range[0], range[1]).size();
+                }
+            case DATE:
+                switch (random.nextInt(4)) {
+                    case 0: return logParser.getDatesForUserAndEvent(user, sample.event(random), range[0], range[1]).size();
+                    case 1: return logParser.getDatesWhenSomethingFailed(range[0], range[1]).size();
+                    case 2: return logParser.getDatesWhenUserSentMessages(user, range[0], range[1]).size();
+                    default:
+                        Date date = logParser.getDateWhenUserLoggedInFirstTime(user, range[0], range[1]);
+                        return date == null ? 0 : date.hashCode();
+                }
+            case EVENT:
+                switch (random.nextInt(4)) {
+                    case 0: return logParser.getNumberOfEvents(range[0], range[1]);
+                    case 1: return logParser.getEventsForUser(user, range[0], range[1]).size();
+                    case 2: return logParser.getNumberOfAttemptsToCompleteTask(sample.task(random), range[0], range[1]);
+                    default: return logParser.getAllCompletedTasksAndNumberOfCompletions(range[0], range[1]).size();
+                }
+            default:
+                switch (random.nextInt(4)) {
+                    case 0: return logParser.execute("get ip for user = \"" + user + "\"").size();
+                    case 1: return logParser.execute("get user for event = \"" + sample.event(random) + "\" and status = \"FAILED\"").size();
+                    case 2: return logParser.execute("get count distinct ip group by event").size();
+                    default:
+                        Date[] between = sample.boundedRange(random);
+                        return logParser.execute("get event for date between \"" + Sample.format(between[0]) + "\" and \""
+                                + Sample.format(between[1]) + "\"").size();
+                }
+        }
+    }
+
+    /**
+     * Query arguments sampled from the loaded data, so most queries find something
+     */
+    private static class Sample {
+        private static final Event[] EVENTS = Event.values();
+        private static final Status[] STATUSES = Status.values();
+
+        private final String[] users;
+        private final String[] ips;
+        private final long minTime;
+        private final long maxTime;
+
+        Sample(LogParser logParser) {
+            users = toArray(logParser.getAllUsers());
+            ips = toArray(logParser.getUniqueIPs(null, null));
+            long[] dates = logParser.getAllDatesMillis();
+            long min = Long.MAX_VALUE;
+            long max = Long.MIN_VALUE;
+            for (long date : dates) {
+                min = Math.min(min, date);
+                max = Math.max(max, date);
+            }
+            minTime = dates.length == 0 ? 0 : min;
+            maxTime = dates.length == 0 ? 0 : max;
+        }
+
+        private static String[] toArray(Collection<String> values) {
+            return values.isEmpty() ? new String[]{""} : values.toArray(new String[0]);
+        }
+
+        String user(Random random) {
+            return users[random.nextInt(users.length)];
+        }
+
+        String ip(Random random) {
+            return ips[random.nextInt(ips.length)];
+        }
+
+        Event event(Random random) {
+            return EVENTS[random.nextInt(EVENTS.length)];
+        }
+
+        Status status(Random random) {
+            return STATUSES[random.nextInt(STATUSES.length)];
+        }
+
+        int task(Random random) {
+            return 1 + random.nextInt(40);
+        }
+
+        /**
+         * Half of the queries are unbounded, the others cover a random part of the data
+         */
+        Date[] range(Random random) {
+            if (random.nextBoolean() || maxTime <= minTime) return new Date[2];
+            long span = maxTime - minTime;
+            long from = minTime + (long) (random.nextDouble() * span);
+            long to = Math.min(maxTime, from + (long) (random.nextDouble() * span / 4));
+            return new Date[]{new Date(from), new Date(to)};
+        }
+
+        Date[] boundedRange(Random random) {
+            Date[] range = range(random);
+            return range[0] != null ? range : new Date[]{new Date(minTime), new Date(maxTime)};
+        }
+
+        static String format(Date date) {
+            return new SimpleDateFormat("d.M.yyyy H:m:s").format(date);
+        }
+    }
+
+    /**
+     * Load of one thread, records into its own histograms
+     */
+    private class Recorder {
+        private final Random random;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[QueryType.values().length];
+        private final long[] allocatedBytes = new long[QueryType.values().length];
+        private long sink;
+
+        Recorder(Random random) {
+            this.random = random;
+            for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+        }
+
+        void drive(com.sun.management.ThreadMXBean threadBean, long first, long end, long interval) {
+            long threadId = Thread.currentThread().getId();
+            long intended = first;
+            while (true) {
+                long now = System.nanoTime();
+                if (interval > 0) {
+                    if (intended >= end) break;
+                    if (intended > now) {
+                        LockSupport.parkNanos(intended - now);
+                        continue;
+                    }
+                } else {
+                    if (now >= end) break;
+                    intended = now;
+                }
+                QueryType type = pick(random);
+                long bytesBefore = threadBean == null ? 0 : threadBean.getThreadAllocatedBytes(threadId);
+                sink += query(type, random);
+                long finished = System.nanoTime();
+                if (threadBean != null) allocatedBytes[type.ordinal()] += threadBean.getThreadAllocatedBytes(threadId) - bytesBefore;
+                histograms[type.ordinal()].record(finished - intended);
+                intended += interval;
+            }
+        }
+    }
+
+    /**
+     * Merged results of all threads
+     */
+    public static class Report {
+        private final long elapsedNanos;
+        private final LatencyHistogram[] histograms = new LatencyHistogram[QueryType.values().length];
+        private final long[] allocatedBytes = new long[QueryType.values().length];
+        private final LatencyHistogram total = new LatencyHistogram();
+        private long sink;
+
+        Report(long elapsedNanos) {
+            this.elapsedNanos = elapsedNanos;
+            for (int i = 0; i < histograms.length; i++) histograms[i] = new LatencyHistogram();
+        }
+
+        private void merge(Recorder recorder) {
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i].merge(recorder.histograms[i]);
+                allocatedBytes[i] += recorder.allocatedBytes[i];
+                total.merge(recorder.histograms[i]);
+            }
+            sink += recorder.sink;
+        }
+
+        public LatencyHistogram getHistogram(QueryType type) {
+            return histograms[type.ordinal()];
+        }
+
+        public double getThroughput() {
+            return total.getTotalCount() * 1e9 / elapsedNanos;
+        }
+
+        /**
+         * Average bytes allocated by the querying thread per query, 0 when the JVM can't tell
+         */
+        public long getBytesPerQuery(QueryType type) {
+            long count = histograms[type.ordinal()].getTotalCount();
+            return count == 0 ? 0 : allocatedBytes[type.ordinal()] / count;
+        }
+
+        public void print() {
+            System.out.printf("%d queries in %.1f s, %.0f queries/s (checksum %d)%n",
+                    total.getTotalCount(), elapsedNanos / 1e9, getThroughput(), sink);
+            System.out.printf("%-6s %9s %9s %10s %10s %10s %10s %12s%n",
+                    "type", "count", "qps", "p50 us", "p99 us", "p999 us", "max us", "bytes/query");
+            for (QueryType type : QueryType.values()) {
+                LatencyHistogram histogram = histograms[type.ordinal()];
+                if (histogram.getTotalCount() == 0) continue;
+                printRow(type.name(), histogram, getBytesPerQuery(type));
+            }
+            long bytes = 0;
+            for (long b : allocatedBytes) bytes += b;
+            printRow("all", total, total.getTotalCount() == 0 ? 0 : bytes / total.getTotalCount());
+        }
+
+        private void printRow(String name, LatencyHistogram histogram, long bytesPerQuery) {
+            System.out.printf("%-6s %9d %9.0f %10.1f %10.1f %10.1f %10.1f %12d%n", name, histogram.getTotalCount(),
+                    histogram.getTotalCount() * 1e9 / elapsedNanos,
+                    histogram.getPercentile(50) / 1e3, histogram.getPercentile(99) / 1e3,
+                    histogram.getPercentile(99.9) / 1e3, histogram.getMax() / 1e3, bytesPerQuery);
+        }
+    }
+
+    /**
+     * Mix is a comma separated list of TYPE=weight, types left out are not queried
+     */
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[QueryType.values().length];
+        int total = 0;
+        for (String part : mix.split(",")) {
+            String[] pair = part.trim().split("=");
+            int weight = Integer.parseInt(pair[1].trim());
+            weights[QueryType.valueOf(pair[0].trim().toUpperCase()).ordinal()] = weight;
+            total += weight;
+        }
+        if (total <= 0) throw new IllegalArgumentException("Query mix has no weight: " + mix);
+        return weights;
+    }
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        //Allocation counters are a HotSpot extension, without them bytes per query are reported as 0
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) return null;
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!bean.isThreadAllocatedMemorySupported()) return null;
+        bean.setThreadAllocatedMemoryEnabled(true);
+        return bean;
+    }
+
+    /**
+     * Writes lines in the log format to a new temporary directory: ip, user, date, event with optional task, status
+     */
+    public static Path writeSyntheticLogs(int lines, int files, long seed) throws IOException {
+        long start = new GregorianCalendar(2011, Calendar.JANUARY, 1).getTimeInMillis();
+        return writeSyntheticLogs(lines, files, seed, start, 365L * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Same, with dates spread over span milliseconds from start
+     */
+    public static Path writeSyntheticLogs(int lines, int files, long seed, long start, long span) throws IOException {
+        Path dir = Files.createTempDirectory("logs");
+        Random random = new Random(seed);
+        Event[] events = Event.values();
+        Status[] statuses = Status.values();
+        List<String> users = new ArrayList<>();
+        for (String last : LAST_NAMES) {
+            for (String first : FIRST_NAMES) users.add(first + " " + last);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("d.M.yyyy H:m:s");
+        for (int f = 0; f < files; f++) {
+            try (BufferedWriter writer = Files.newBufferedWriter(dir.resolve("synthetic" + f + ".log"))) {
+                for (int i = f; i < lines; i += files) {
+                    Event event = events[random.nextInt(events.length)];
+                    writer.write("10.0." + random.nextInt(4) + "." + random.nextInt(64));
+                    writer.write('\t');
+                    writer.write(users.get(random.nextInt(users.size())));
+                    writer.write('\t');
+                    writer.write(format.format(new Date(start + (long) (random.nextDouble() * span))));
+                    writer.write('\t');
+                    writer.write(event.name());
+                    if (event == Event.ATTEMPT_TASK || event == Event.COMPLETE_TASK) writer.write(" " + (1 + random.nextInt(40)));
+                    writer.write('\t');
+                    writer.write(statuses[random.nextInt(statuses.length)].name());
+                    writer.newLine();
+                }
+            }
+        }
+        return dir;
+    }
+
+    public static void deleteDirectory(Path dir) {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException ignored) {
+        }
+    }
+}
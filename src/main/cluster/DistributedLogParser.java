@@ -0,0 +1,528 @@
+package main.cluster;
+
+import main.Event;
+import main.QLStatement;
+import main.Status;
+import main.StorageMode;
+import main.TaskFunnel;
+import main.query.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Coordinator of LogWorker processes, each worker holds a disjoint part of the log directory
+ * Every query is sent to all workers in parallel and partial results are merged:
+ * sets are joined, counts of distinct values are taken from joined sets, task counters are summed and earliest dates win,
+ * task funnels keep the earliest attempt and completion of every user
+ */
+public class DistributedLogParser implements IPQuery, UserQuery, DateQuery, EventQuery, FunnelQuery, QLQuery, Closeable {
+    private static final Class<?>[] DATE_RANGE = RemoteCall.DATE_RANGE;
+    //Sockets kept open to each worker, so that many queries can run at once
+    private static final int CONNECTIONS_PER_WORKER = 4;
+
+    private final List<WorkerPool> workers = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /**
+     * Connects to already running workers
+     */
+    public DistributedLogParser(List<InetSocketAddress> workerAddresses) throws IOException {
+        executor = createExecutor(workerAddresses.size());
+        try {
+            for (InetSocketAddress address : workerAddresses) workers.add(new WorkerPool(address));
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private DistributedLogParser(int workerCount) {
+        executor = createExecutor(workerCount);
+    }
+
+    /**
+     * Starts given number of local worker processes over logDir and connects to them
+     * Workers use the classpath of the current JVM and are stopped by close()
+     */
+    public static DistributedLogParser launch(Path logDir, int workerCount, StorageMode mode) throws IOException {
+        if (workerCount <= 0) throw new IllegalArgumentException("At least one worker is needed: " + workerCount);
+        DistributedLogParser parser = new DistributedLogParser(workerCount);
+        try {
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            for (int i = 0; i < workerCount; i++) {
+                ProcessBuilder builder = new ProcessBuilder(java, "-D" + LogWorker.WATCH_PARENT_PROPERTY + "=true",
+                        "-cp", System.getProperty("java.class.path"), LogWorker.class.getName(),
+                        logDir.toAbsolutePath().toString(), String.valueOf(i), String.valueOf(workerCount), mode.name());
+                builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+                parser.processes.add(builder.start());
+            }
+            //Workers load in parallel, we only wait for their ports here
+            for (Process process : parser.processes) {
+                parser.workers.add(new WorkerPool(new InetSocketAddress("127.0.0.1", readPort(process))));
+            }
+        } catch (IOException | RuntimeException e) {
+            parser.close();
+            throw e;
+        }
+        return parser;
+    }
+
+    private static int readPort(Process process) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line = reader.readLine();
+        if (line == null || !line.startsWith("PORT ")) throw new IOException("Worker did not start, got: " + line);
+        return Integer.parseInt(line.substring(5).trim());
+    }
+
+    private static ExecutorService createExecutor(int workerCount) {
+        return Executors.newFixedThreadPool(Math.max(1, workerCount) * CONNECTIONS_PER_WORKER, runnable -> {
+            Thread thread = new Thread(runnable, "log-coordinator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public void close() {
+        for (WorkerPool worker : workers) worker.close();
+        workers.clear();
+        for (Process process : processes) process.destroy();
+        processes.clear();
+        executor.shutdownNow();
+    }
+
+    public int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Scatter-gather helpers
+     */
+
+    @SuppressWarnings("unchecked")
+    private <T> List<T> fanOut(String method, Class<?>[] parameterTypes, Object... args) {
+        RemoteCall call = new RemoteCall(method, parameterTypes, args);
+        List<Future<Object>> futures = new ArrayList<>();
+        for (WorkerPool worker : workers) futures.add(executor.submit(() -> worker.call(call)));
+
+        List<T> results = new ArrayList<>();
+        try {
+            for (Future<Object> future : futures) results.add((T) future.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for workers", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IllegalStateException("Worker call " + method + " failed", e.getCause());
+        }
+        return results;
+    }
+
+    private <T> Set<T> union(String method, Class<?>[] parameterTypes, Object... args) {
+        Set<T> result = new HashSet<>();
+        for (Set<T> part : this.<Set<T>>fanOut(method, parameterTypes, args)) result.addAll(part);
+        return result;
+    }
+
+    private int sum(String method, Class<?>[] parameterTypes, Object... args) {
+        int result = 0;
+        for (Integer part : this.<Integer>fanOut(method, parameterTypes, args)) result += part;
+        return result;
+    }
+
+    private Map<Integer, Integer> sumByKey(String method, Class<?>[] parameterTypes, Object... args) {
+        Map<Integer, Integer> result = new HashMap<>();
+        for (Map<Integer, Integer> part : this.<Map<Integer, Integer>>fanOut(method, parameterTypes, args)) {
+            for (Map.Entry<Integer, Integer> entry : part.entrySet()) result.merge(entry.getKey(), entry.getValue(), Integer::sum);
+        }
+        return result;
+    }
+
+    private Date earliest(String method, Class<?>[] parameterTypes, Object... args) {
+        Date result = null;
+        for (Date part : this.<Date>fanOut(method, parameterTypes, args)) {
+            if (part != null && (result == null || part.before(result))) result = part;
+        }
+        return result;
+    }
+
+    private static Class<?>[] types(Class<?>... prefix) {
+        Class<?>[] result = Arrays.copyOf(prefix, prefix.length + 2);
+        result[prefix.length] = Date.class;
+        result[prefix.length + 1] = Date.class;
+        return result;
+    }
+
+    /**
+     * IPQuery methods
+     */
+
+    @Override
+    public int getNumberOfUniqueIPs(Date after, Date before) {
+        //Same ip can show up on several workers, so distinct values are counted after merging
+        return getUniqueIPs(after, before).size();
+    }
+
+    @Override
+    public Set<String> getUniqueIPs(Date after, Date before) {
+        return union("getUniqueIPs", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getIPsForUser(String user, Date after, Date before) {
+        return union("getIPsForUser", types(String.class), user, after, before);
+    }
+
+    @Override
+    public Set<String> getIPsForEvent(Event event, Date after, Date before) {
+        return union("getIPsForEvent", types(Event.class), event, after, before);
+    }
+
+    @Override
+    public Set<String> getIPsForStatus(Status status, Date after, Date before) {
+        return union("getIPsForStatus", types(Status.class), status, after, before);
+    }
+
+    /**
+     * UserQuery methods
+     */
+
+    @Override
+    public Set<String> getAllUsers() {
+        return union("getAllUsers", new Class<?>[0]);
+    }
+
+    @Override
+    public int getNumberOfUsers(Date after, Date before) {
+        return this.<String>union("getUsers", DATE_RANGE, after, before).size();
+    }
+
+    @Override
+    public int getNumberOfUserEvents(String user, Date after, Date before) {
+        return getEventsForUser(user, after, before).size();
+    }
+
+    @Override
+    public Set<String> getUsersForIP(String ip, Date after, Date before) {
+        return union("getUsersForIP", types(String.class), ip, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveLoggedIn(Date after, Date before) {
+        return union("getUsersWhoHaveLoggedIn", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveDownloadedPlugin(Date after, Date before) {
+        return union("getUsersWhoHaveDownloadedPlugin", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveSentMessages(Date after, Date before) {
+        return union("getUsersWhoHaveSentMessages", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveAttemptedTasks(Date after, Date before) {
+        return union("getUsersWhoHaveAttemptedTasks", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveAttemptedTasks(Date after, Date before, int task) {
+        return union("getUsersWhoHaveAttemptedTasks", new Class<?>[]{Date.class, Date.class, int.class}, after, before, task);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveCompletedTasks(Date after, Date before) {
+        return union("getUsersWhoHaveCompletedTasks", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<String> getUsersWhoHaveCompletedTasks(Date after, Date before, int task) {
+        return union("getUsersWhoHaveCompletedTasks", new Class<?>[]{Date.class, Date.class, int.class}, after, before, task);
+    }
+
+    /**
+     * DateQuery methods
+     */
+
+    @Override
+    public Set<Date> getDatesForUserAndEvent(String user, Event event, Date after, Date before) {
+        return union("getDatesForUserAndEvent", types(String.class, Event.class), user, event, after, before);
+    }
+
+    @Override
+    public Set<Date> getDatesWhenSomethingFailed(Date after, Date before) {
+        return union("getDatesWhenSomethingFailed", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<Date> getDatesWhenErrorOccurred(Date after, Date before) {
+        return union("getDatesWhenErrorOccurred", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Date getDateWhenUserLoggedInFirstTime(String user, Date after, Date before) {
+        return earliest("getDateWhenUserLoggedInFirstTime", types(String.class), user, after, before);
+    }
+
+    @Override
+    public Date getDateWhenUserAttemptedTask(String user, int task, Date after, Date before) {
+        return earliest("getDateWhenUserAttemptedTask", types(String.class, int.class), user, task, after, before);
+    }
+
+    @Override
+    public Date getDateWhenUserCompletedTask(String user, int task, Date after, Date before) {
+        return earliest("getDateWhenUserCompletedTask", types(String.class, int.class), user, task, after, before);
+    }
+
+    @Override
+    public Set<Date> getDatesWhenUserSentMessages(String user, Date after, Date before) {
+        return union("getDatesWhenUserSentMessages", types(String.class), user, after, before);
+    }
+
+    @Override
+    public Set<Date> getDatesWhenUserDownloadedPlugin(String user, Date after, Date before) {
+        return union("getDatesWhenUserDownloadedPlugin", types(String.class), user, after, before);
+    }
+
+    /**
+     * EventQuery methods
+     */
+
+    @Override
+    public int getNumberOfEvents(Date after, Date before) {
+        return getAllEvents(after, before).size();
+    }
+
+    @Override
+    public Set<Event> getAllEvents(Date after, Date before) {
+        return union("getAllEvents", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<Event> getEventsForIP(String ip, Date after, Date before) {
+        return union("getEventsForIP", types(String.class), ip, after, before);
+    }
+
+    @Override
+    public Set<Event> getEventsForUser(String user, Date after, Date before) {
+        return union("getEventsForUser", types(String.class), user, after, before);
+    }
+
+    @Override
+    public Set<Event> getFailedEvents(Date after, Date before) {
+        return union("getFailedEvents", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Set<Event> getErrorEvents(Date after, Date before) {
+        return union("getErrorEvents", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public int getNumberOfAttemptsToCompleteTask(int task, Date after, Date before) {
+        return sum("getNumberOfAttemptsToCompleteTask", types(int.class), task, after, before);
+    }
+
+    @Override
+    public int getNumberOfSuccessfulAttemptsToCompleteTask(int task, Date after, Date before) {
+        return sum("getNumberOfSuccessfulAttemptsToCompleteTask", types(int.class), task, after, before);
+    }
+
+    @Override
+    public Map<Integer, Integer> getAllAttemptedTasksAndNumberOfAttempts(Date after, Date before) {
+        return sumByKey("getAllAttemptedTasksAndNumberOfAttempts", DATE_RANGE, after, before);
+    }
+
+    @Override
+    public Map<Integer, Integer> getAllCompletedTasksAndNumberOfCompletions(Date after, Date before) {
+        return sumByKey("getAllCompletedTasksAndNumberOfCompletions", DATE_RANGE, after, before);
+    }
+
+    /**
+     * FunnelQuery methods
+     */
+
+    @Override
+    public TaskFunnel getTaskFunnel(int task, Date after, Date before) {
+        TaskFunnel result = null;
+        for (TaskFunnel part : this.<TaskFunnel>fanOut("getTaskFunnel", types(int.class), task, after, before)) {
+            result = result == null ? part : result.merge(part);
+        }
+        return result;
+    }
+
+    @Override
+    public Map<Integer, TaskFunnel> getTaskFunnels(Date after, Date before) {
+        Map<Integer, TaskFunnel> result = new TreeMap<>();
+        for (Map<Integer, TaskFunnel> part : this.<Map<Integer, TaskFunnel>>fanOut("getTaskFunnels", DATE_RANGE, after, before)) {
+            for (TaskFunnel funnel : part.values()) result.merge(funnel.getTask(), funnel, TaskFunnel::merge);
+        }
+        return result;
+    }
+
+    /**
+     * QLQuery method
+     */
+
+    /**
+     * Plain projections are joined, counts and grouped counts are summed
+     * count distinct is answered from joined values of the field, with group by from values joined per group
+     */
+    @Override
+    public Set<Object> execute(String query) {
+        QLStatement statement;
+        try {
+            statement = QLStatement.parse(query);
+        } catch (IllegalArgumentException e) {
+            return new HashSet<>();
+        }
+        Class<?>[] types = {String.class};
+        if (statement.getAggregate() == QLStatement.Aggregate.NONE) return union("execute", types, query);
+
+        Set<Object> result = new HashSet<>();
+        if (statement.getAggregate() == QLStatement.Aggregate.COUNT_DISTINCT) {
+            if (statement.getGroupBy() == null) result.add(union("execute", types, statement.withoutAggregate().toString()).size());
+            else {
+                //Same value may show up in a group on several workers, so values are joined before counting
+                Map<Object, Set<Object>> values = new HashMap<>();
+                for (Map<Object, Set<Object>> part : this.<Map<Object, Set<Object>>>fanOut("getValuesByGroup", types, query)) {
+                    for (Map.Entry<Object, Set<Object>> group : part.entrySet()) {
+                        values.computeIfAbsent(group.getKey(), k -> new HashSet<>()).addAll(group.getValue());
+                    }
+                }
+                for (Map.Entry<Object, Set<Object>> group : values.entrySet()) result.add(new AbstractMap.SimpleImmutableEntry<>(group.getKey(), group.getValue().size()));
+            }
+        }
+        else if (statement.getGroupBy() == null) {
+            int count = 0;
+            for (Set<Object> part : this.<Set<Object>>fanOut("execute", types, query)) {
+                for (Object value : part) count += (Integer) value;
+            }
+            result.add(count);
+        }
+        else {
+            Map<Object, Integer> counts = new HashMap<>();
+            for (Set<Object> part : this.<Set<Object>>fanOut("execute", types, query)) {
+                for (Object value : part) {
+                    Map.Entry<?, ?> group = (Map.Entry<?, ?>) value;
+                    counts.merge(group.getKey(), (Integer) group.getValue(), Integer::sum);
+                }
+            }
+            for (Map.Entry<Object, Integer> group : counts.entrySet()) result.add(new AbstractMap.SimpleImmutableEntry<>(group.getKey(), group.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Sockets to one worker, each call borrows one so concurrent queries do not wait for each other
+     * New sockets are opened when all are busy, at most CONNECTIONS_PER_WORKER stay open when idle
+     */
+    private static class WorkerPool {
+        private final InetSocketAddress address;
+        private final Deque<WorkerConnection> idle = new ArrayDeque<>();
+        private final Set<WorkerConnection> open = new HashSet<>();
+        private boolean closed;
+
+        WorkerPool(InetSocketAddress address) throws IOException {
+            this.address = address;
+            //First socket is opened right away, so that an unreachable worker fails the constructor
+            release(borrow());
+        }
+
+        Object call(RemoteCall call) throws IOException, ClassNotFoundException {
+            WorkerConnection connection = borrow();
+            boolean reusable = false;
+            try {
+                Object result = connection.call(call);
+                reusable = true;
+                return result;
+            } catch (RuntimeException e) {
+                //Worker sent back an exception, the stream is still in step
+                reusable = true;
+                throw e;
+            } finally {
+                if (reusable) release(connection);
+                else discard(connection);
+            }
+        }
+
+        private WorkerConnection borrow() throws IOException {
+            synchronized (this) {
+                if (closed) throw new IllegalStateException("Distributed log parser is closed");
+                if (!idle.isEmpty()) return idle.pop();
+            }
+            WorkerConnection connection = new WorkerConnection(address);
+            synchronized (this) {
+                if (!closed) {
+                    open.add(connection);
+                    return connection;
+                }
+            }
+            connection.close();
+            throw new IllegalStateException("Distributed log parser is closed");
+        }
+
+        private synchronized void release(WorkerConnection connection) {
+            if (closed || idle.size() >= CONNECTIONS_PER_WORKER) discard(connection);
+            else idle.push(connection);
+        }
+
+        private synchronized void discard(WorkerConnection connection) {
+            open.remove(connection);
+            connection.close();
+        }
+
+        /**
+         * Closes busy sockets too, calls waiting on them fail
+         */
+        synchronized void close() {
+            closed = true;
+            for (WorkerConnection connection : open) connection.close();
+            open.clear();
+            idle.clear();
+        }
+    }
+
+    /**
+     * Single socket to one worker, used by one call at a time
+     */
+    private static class WorkerConnection {
+        private final Socket socket;
+        private final ObjectOutputStream out;
+        private final ObjectInputStream in;
+
+        WorkerConnection(InetSocketAddress address) throws IOException {
+            socket = new Socket(address.getAddress(), address.getPort());
+            out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.flush();
+            in = new ObjectInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        Object call(RemoteCall call) throws IOException, ClassNotFoundException {
+            out.writeObject(call);
+            out.reset();
+            out.flush();
+            Object result = in.readObject();
+            if (result instanceof RuntimeException) throw (RuntimeException) result;
+            if (result instanceof Throwable) throw new IllegalStateException("Worker failed", (Throwable) result);
+            return result;
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package main.cluster;
+
+import main.Event;
+import main.LogParser;
+import main.Status;
+import main.StorageMode;
+import main.query.*;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Worker process of DistributedLogParser
+ * Loads its share of the log directory (files whose relative path hashes to workerIndex) and answers query calls on a loopback socket
+ * Usage: LogWorker logDir workerIndex workerCount [storageMode] [port]
+ * Once listening, the worker prints "PORT number" as the first line on standard output
+ * With -Dmain.cluster.watchParent=true the worker exits when its standard input closes, launched workers use it to die with the coordinator
+ */
+public class LogWorker {
+    static final String WATCH_PARENT_PROPERTY = "main.cluster.watchParent";
+    private static final Class<?>[] QUERY_INTERFACES = {IPQuery.class, UserQuery.class, DateQuery.class, EventQuery.class, FunnelQuery.class, QLQuery.class};
+    //Everything a RemoteCall is made of, superclasses included since the stream describes them too
+    private static final Set<Class<?>> SERIAL_CLASSES = Set.of(RemoteCall.class, Class.class, String.class, Date.class,
+            Number.class, Integer.class, Long.class, Short.class, Byte.class, Double.class, Float.class, Character.class, Boolean.class,
+            Enum.class, Event.class, Status.class, Object.class);
+
+    private final LogParser logParser;
+    private final Set<Method> allowedMethods = new HashSet<>();
+
+    public LogWorker(LogParser logParser) {
+        this.logParser = logParser;
+        //Only query methods can be called remotely, not close() or retention
+        for (Class<?> queryInterface : QUERY_INTERFACES) {
+            for (Method method : queryInterface.getMethods()) allowedMethods.add(toParserMethod(method.getName(), method.getParameterTypes()));
+        }
+        allowedMethods.add(toParserMethod("getUsers", RemoteCall.DATE_RANGE));
+        allowedMethods.add(toParserMethod("getValuesByGroup", new Class<?>[]{String.class}));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: LogWorker logDir workerIndex workerCount [storageMode] [port]");
+            System.exit(1);
+        }
+        Path logDir = Paths.get(args[0]).toAbsolutePath();
+        int workerIndex = Integer.parseInt(args[1]);
+        int workerCount = Integer.parseInt(args[2]);
+        StorageMode mode = args.length > 3 ? StorageMode.valueOf(args[3]) : StorageMode.EAGER;
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+
+        LogParser logParser = new LogParser(logDir, mode, LogParser.DEFAULT_PARTITION_SIZE,
+                file -> isAssigned(logDir.relativize(file.toAbsolutePath()), workerIndex, workerCount));
+        new LogWorker(logParser).serve(port);
+    }
+
+    /**
+     * Splits files between workers, each file goes to exactly one of them
+     */
+    public static boolean isAssigned(Path relativePath, int workerIndex, int workerCount) {
+        return Math.floorMod(relativePath.toString().hashCode(), workerCount) == workerIndex;
+    }
+
+    public void serve(int port) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("PORT " + serverSocket.getLocalPort());
+            System.out.flush();
+            if (Boolean.getBoolean(WATCH_PARENT_PROPERTY)) exitWhenParentGone();
+            while (true) {
+                Socket socket = serverSocket.accept();
+                Thread thread = new Thread(() -> handle(socket), "log-worker-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(s.getOutputStream()));
+             ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(s.getInputStream()))) {
+            //Any local process can connect, so only classes of a query call are deserialized
+            in.setObjectInputFilter(LogWorker::checkClass);
+            out.flush();
+            while (true) {
+                RemoteCall call = (RemoteCall) in.readObject();
+                out.writeObject(invoke(call));
+                //Reset drops references kept by the stream, otherwise every result would stay reachable
+                out.reset();
+                out.flush();
+            }
+        } catch (EOFException ignored) {
+            //Coordinator closed the connection
+        } catch (IOException | ClassNotFoundException e) {
+            System.err.println("Worker connection failed: " + e);
+        }
+    }
+
+    private static ObjectInputFilter.Status checkClass(ObjectInputFilter.FilterInfo info) {
+        Class<?> type = info.serialClass();
+        if (type == null) return ObjectInputFilter.Status.UNDECIDED;
+        while (type.isArray()) type = type.getComponentType();
+        return type.isPrimitive() || SERIAL_CLASSES.contains(type) ? ObjectInputFilter.Status.ALLOWED : ObjectInputFilter.Status.REJECTED;
+    }
+
+    private Object invoke(RemoteCall call) {
+        try {
+            Method method = toParserMethod(call.getMethod(), call.getParameterTypes());
+            if (!allowedMethods.contains(method)) return new IllegalArgumentException("Not a query method: " + call.getMethod());
+            return method.invoke(logParser, call.getArgs());
+        } catch (InvocationTargetException e) {
+            return e.getCause();
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            return e;
+        }
+    }
+
+    private static Method toParserMethod(String name, Class<?>[] parameterTypes) {
+        try {
+            return LogParser.class.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Unknown query method: " + name, e);
+        }
+    }
+
+    private static void exitWhenParentGone() {
+        //Coordinator never writes to worker stdin, end of stream means the coordinator process is gone
+        Thread watcher = new Thread(() -> {
+            try {
+                while (System.in.read() != -1) {
+                }
+            } catch (IOException ignored) {
+            }
+            System.exit(0);
+        }, "log-worker-parent-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+}
@@ -0,0 +1,35 @@
+package main.cluster;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Query method call sent from DistributedLogParser to a LogWorker
+ */
+class RemoteCall implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    static final Class<?>[] DATE_RANGE = {Date.class, Date.class};
+
+    private final String method;
+    private final Class<?>[] parameterTypes;
+    private final Object[] args;
+
+    RemoteCall(String method, Class<?>[] parameterTypes, Object... args) {
+        this.method = method;
+        this.parameterTypes = parameterTypes;
+        this.args = args;
+    }
+
+    String getMethod() {
+        return method;
+    }
+
+    Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    Object[] getArgs() {
+        return args;
+    }
+}
@@ -0,0 +1,30 @@
+package main.query;
+
+import main.Event;
+
+/**
+ * DateQuery with dates as epoch milliseconds, so no Date objects are created or boxed
+ * Long.MIN_VALUE as after and Long.MAX_VALUE as before mean no limit, both ends are included
+ * Sets of dates are returned as sorted arrays of distinct values, missing single dates as NO_DATE
+ */
+public interface DateMillisQuery {
+    long NO_DATE = Long.MIN_VALUE;
+
+    long[] getDatesForUserAndEventMillis(String user, Event event, long after, long before);
+
+    long[] getDatesWhenSomethingFailedMillis(long after, long before);
+
+    long[] getDatesWhenErrorOccurredMillis(long after, long before);
+
+    long getDateWhenUserLoggedInFirstTimeMillis(String user, long after, long before);
+
+    long getDateWhenUserAttemptedTaskMillis(String user, int task, long after, long before);
+
+    long getDateWhenUserCompletedTaskMillis(String user, int task, long after, long before);
+
+    long[] getDatesWhenUserSentMessagesMillis(String user, long after, long before);
+
+    long[] getDatesWhenUserDownloadedPluginMillis(String user, long after, long before);
+
+    long[] getAllDatesMillis();
+}
@@ -0,0 +1,18 @@
+package main.query;
+
+import main.TaskFunnel;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Joins task attempts with task completions of the same user
+ */
+public interface FunnelQuery {
+    TaskFunnel getTaskFunnel(int task, Date after, Date before);
+
+    /**
+     * Funnels of every task attempted or completed in the range, sorted by task number
+     */
+    Map<Integer, TaskFunnel> getTaskFunnels(Date after, Date before);
+}
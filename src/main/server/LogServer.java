@@ -0,0 +1,220 @@
+package main.server;
+
+import main.Event;
+import main.LogParser;
+import main.Status;
+import main.StorageMode;
+import main.query.*;
+
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Long running query server, the log directory is loaded once and shared by all clients
+ *
+ * Line protocol, one request per line, fields separated by tabs:
+ * execute[TAB]get ip for user = "Amigo"
+ * getIPsForUser[TAB]Amigo[TAB]01.01.2020 00:00:00[TAB]null
+ * Dates use day.month.year hour:minute:second, "null" (or empty field) stands for no date
+ * Every request gets one response line: OK followed by values separated by tabs, or ERR followed by the message
+ * Clients may send several requests without waiting, responses come back in request order
+ * At most MAX_IN_FLIGHT requests of a connection run or wait to be written, further lines are read as responses go out
+ * QUIT closes the connection
+ *
+ * Each connection and each request runs on its own thread (virtual thread when the JVM supports them),
+ * queries read LogParser without locking
+ */
+public class LogServer implements Closeable {
+    private static final Class<?>[] QUERY_INTERFACES = {IPQuery.class, UserQuery.class, DateQuery.class, EventQuery.class, QLQuery.class};
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd.MM.yyyy HH:mm:ss");
+    private static final DateTimeFormatter DATE_INPUT_FORMAT = DateTimeFormatter.ofPattern("d.M.yyyy H:m:s");
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private final LogParser logParser;
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor;
+    //Query methods by name and number of arguments
+    private final Map<String, Method> methods = new HashMap<>();
+
+    public LogServer(LogParser logParser, int port) throws IOException {
+        this.logParser = logParser;
+        for (Class<?> queryInterface : QUERY_INTERFACES) {
+            for (Method method : queryInterface.getMethods()) methods.put(method.getName() + "/" + method.getParameterCount(), method);
+        }
+        executor = createExecutor();
+        serverSocket = new ServerSocket(port, 200, InetAddress.getLoopbackAddress());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: LogServer logDir [port] [storageMode]");
+            System.exit(1);
+        }
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 4040;
+        StorageMode mode = args.length > 2 ? StorageMode.valueOf(args[2]) : StorageMode.EAGER;
+        LogParser logParser = new LogParser(Paths.get(args[0]), mode);
+        LogServer server = new LogServer(logParser, port);
+        System.out.println("Listening on port " + server.getPort());
+        server.serve();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts clients until the server is closed
+     */
+    public void serve() throws IOException {
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                //Socket was closed by close()
+                break;
+            }
+            executor.execute(() -> handle(socket));
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        executor.shutdownNow();
+    }
+
+    private void handle(Socket socket) {
+        try (Socket s = socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+             Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
+            //Requests run concurrently, this queue keeps their responses in request order
+            BlockingQueue<Future<String>> responses = new LinkedBlockingQueue<>();
+            //Permits are taken per request and given back once its response is written
+            Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+            Future<?> writer = executor.submit(() -> writeResponses(responses, inFlight, s, out));
+
+            try {
+                String line;
+                while ((line = in.readLine()) != null && !line.equals("QUIT")) {
+                    String request = line;
+                    inFlight.acquire();
+                    //Writer closes the socket when the client is gone, lines still buffered are dropped
+                    if (s.isClosed()) break;
+                    responses.add(executor.submit(() -> answer(request)));
+                }
+            } finally {
+                //Empty future marks the end of requests for the writer, also when the client reset the connection
+                responses.add(CompletableFuture.completedFuture(null));
+            }
+            writer.get();
+        } catch (IOException | ExecutionException | RejectedExecutionException ignored) {
+            //Client went away, or the server was closed while the connection was open
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Void writeResponses(BlockingQueue<Future<String>> responses, Semaphore inFlight, Socket socket, Writer out)
+            throws IOException, InterruptedException, ExecutionException {
+        try {
+            while (true) {
+                Future<String> next = responses.take();
+                String response = next.get();
+                if (response == null) break;
+                out.write(response);
+                out.write('\n');
+                inFlight.release();
+                //Flush only when no other response is ready, pipelined requests share one write
+                if (responses.isEmpty() || !responses.peek().isDone()) out.flush();
+            }
+            out.flush();
+            return null;
+        } catch (IOException | ExecutionException e) {
+            //Reader may be waiting for a permit, it stops once it sees the socket closed
+            socket.close();
+            inFlight.release(MAX_IN_FLIGHT);
+            throw e;
+        }
+    }
+
+    private String answer(String request) {
+        try {
+            String[] fields = request.split("\t", -1);
+            Method method = methods.get(fields[0] + "/" + (fields.length - 1));
+            if (method == null) return "ERR\tUnknown request: " + fields[0] + " with " + (fields.length - 1) + " arguments";
+
+            Class<?>[] types = method.getParameterTypes();
+            Object[] args = new Object[types.length];
+            for (int i = 0; i < types.length; i++) args[i] = parseArgument(fields[i + 1], types[i]);
+            return "OK" + format(method.invoke(logParser, args));
+        } catch (InvocationTargetException e) {
+            return "ERR\t" + e.getCause();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return "ERR\t" + e;
+        }
+    }
+
+    private static Object parseArgument(String value, Class<?> type) {
+        if (type == Date.class) {
+            if (value.isEmpty() || value.equals("null")) return null;
+            try {
+                LocalDateTime dateTime = LocalDateTime.parse(value, DATE_INPUT_FORMAT);
+                return Date.from(dateTime.atZone(ZoneId.systemDefault()).toInstant());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Bad date: " + value);
+            }
+        }
+        if (type == int.class) return Integer.parseInt(value);
+        if (type == Event.class) return Event.valueOf(value);
+        if (type == Status.class) return Status.valueOf(value);
+        return value;
+    }
+
+    private static String format(Object result) {
+        StringBuilder sb = new StringBuilder();
+        if (result instanceof Collection) {
+            for (Object value : (Collection<?>) result) sb.append('\t').append(formatValue(value));
+        }
+        else if (result instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) result).entrySet()) {
+                sb.append('\t').append(formatValue(entry.getKey())).append('=').append(formatValue(entry.getValue()));
+            }
+        }
+        else sb.append('\t').append(formatValue(result));
+        return sb.toString();
+    }
+
+    private static String formatValue(Object value) {
+        if (value instanceof Date) {
+            return LocalDateTime.ofInstant(((Date) value).toInstant(), ZoneId.systemDefault()).format(DATE_FORMAT);
+        }
+        return String.valueOf(value);
+    }
+
+    private static ExecutorService createExecutor() {
+        //Virtual threads exist from Java 21, older JVMs fall back to a cached pool of daemon threads
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "log-server");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}